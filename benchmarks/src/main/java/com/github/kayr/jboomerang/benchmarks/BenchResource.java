@@ -0,0 +1,42 @@
+package com.github.kayr.jboomerang.benchmarks;
+
+import com.github.kayr.jboomerang.JBoomerang;
+
+/**
+ * A resource that costs nothing to create or close so that the benchmarks only measure JBoomerang itself.
+ */
+public class BenchResource {
+
+    private long uses;
+
+    public long use() {
+        return ++uses;
+    }
+
+    public static class Factory implements JBoomerang.ResourceFactory<BenchResource> {
+
+        private boolean failOnClose = false;
+
+        public Factory failOnClose(boolean failOnClose) {
+            this.failOnClose = failOnClose;
+            return this;
+        }
+
+        @Override
+        public BenchResource create(Object discriminator, JBoomerang.Args args) {
+            return new BenchResource();
+        }
+
+        @Override
+        public void close(Object discriminator, BenchResource resource) {
+            if (failOnClose) {
+                throw new IllegalStateException("close failed");
+            }
+        }
+
+        @Override
+        public void onException(Object discriminator, BenchResource resource) {
+            //nothing to roll back
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.kayr.jboomerang.benchmarks;
+
+import com.github.kayr.jboomerang.JBoomerang;
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import com.github.kayr.jboomerang.JBoomerangFunction;
+import com.github.kayr.jboomerang.PooledResourceFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several threads sharing one JBoomerang instance, with and without a shared pool behind it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ContendedBenchmark {
+
+    private JBoomerang<BenchResource> boomerang;
+    private JBoomerang<BenchResource> pooled;
+    private PooledResourceFactory<BenchResource> pool;
+
+    private JBoomerangFunction<BenchResource, Long> nested;
+    private JBoomerangFunction<BenchResource, Long> pooledNested;
+
+    @Setup
+    public void setUp() {
+        boomerang = new JBoomerang<>(new BenchResource.Factory());
+        pool = PooledResourceFactory.builder(new BenchResource.Factory()).maxSize(64).build();
+        pooled = new JBoomerang<>(pool);
+
+        nested = r -> boomerang.withResource(Propagation.JOIN, BenchResource::use);
+        pooledNested = r -> pooled.withResource(Propagation.JOIN, BenchResource::use);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public Long nestedJoin() {
+        return boomerang.withResource(Propagation.JOIN, nested);
+    }
+
+    @Benchmark
+    public Long pooledNestedJoin() {
+        return pooled.withResource(Propagation.JOIN, pooledNested);
+    }
+
+}
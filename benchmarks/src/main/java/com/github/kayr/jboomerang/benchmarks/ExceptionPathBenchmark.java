@@ -0,0 +1,69 @@
+package com.github.kayr.jboomerang.benchmarks;
+
+import com.github.kayr.jboomerang.CloseFailurePolicy;
+import com.github.kayr.jboomerang.JBoomerang;
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the failure paths: work failures, close failures and both, which all go through the close and
+ * suppression handling in JBoomerang. {@code cheap} registers a {@link CloseFailurePolicy} with stackless close
+ * exceptions and aggregated cleanup failures.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExceptionPathBenchmark {
+
+    @Param({"default", "cheap"})
+    private String failureMode;
+
+    private JBoomerang<BenchResource> boomerang;
+    private JBoomerang<BenchResource> failingClose;
+
+    @Setup
+    public void setUp() {
+        boomerang = new JBoomerang<>(new BenchResource.Factory());
+        failingClose = new JBoomerang<>(new BenchResource.Factory().failOnClose(true));
+        if (failureMode.equals("cheap")) {
+            CloseFailurePolicy policy = CloseFailurePolicy.builder().stackTraceSampleRate(0).build();
+            boomerang.closeFailures(policy);
+            failingClose.closeFailures(policy);
+        }
+    }
+
+    @Benchmark
+    public Throwable workFails() {
+        return run(boomerang, true);
+    }
+
+    @Benchmark
+    public Throwable closeFails() {
+        return run(failingClose, false);
+    }
+
+    @Benchmark
+    public Throwable workAndCloseFail() {
+        return run(failingClose, true);
+    }
+
+    private static Throwable run(JBoomerang<BenchResource> boomerang, boolean failWork) {
+        try {
+            boomerang.withResource(Propagation.JOIN, r -> {
+                if (failWork) {
+                    throw new IllegalArgumentException("work failed");
+                }
+                return r.use();
+            });
+            return null;
+        } catch (RuntimeException x) {
+            return x;
+        }
+    }
+
+}
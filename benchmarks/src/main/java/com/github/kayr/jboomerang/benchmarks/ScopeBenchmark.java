@@ -0,0 +1,82 @@
+package com.github.kayr.jboomerang.benchmarks;
+
+import com.github.kayr.jboomerang.JBoomerang;
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import com.github.kayr.jboomerang.JBoomerangFunction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded cost of entering and leaving scopes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScopeBenchmark {
+
+    @Param({"false", "true"})
+    public boolean retainThreadState;
+
+    @Param({"10"})
+    public int depth;
+
+    @Param({"16"})
+    public int discriminators;
+
+    private JBoomerang<BenchResource> boomerang;
+
+    private JBoomerangFunction<BenchResource, Long> nestedJoin;
+    private JBoomerangFunction<BenchResource, Long> withNewStack;
+    private JBoomerangFunction<BenchResource, Long> discriminatorChain;
+
+    @Setup
+    public void setUp() {
+        boomerang = new JBoomerang<>(new BenchResource.Factory()).retainThreadState(retainThreadState);
+
+        nestedJoin = BenchResource::use;
+        withNewStack = BenchResource::use;
+        for (int i = 0; i < depth; i++) {
+            JBoomerangFunction<BenchResource, Long> joinInner = nestedJoin;
+            JBoomerangFunction<BenchResource, Long> newInner = withNewStack;
+            nestedJoin = r -> boomerang.withResource(Propagation.JOIN, joinInner);
+            withNewStack = r -> boomerang.withResource(Propagation.WITH_NEW, newInner);
+        }
+
+        discriminatorChain = BenchResource::use;
+        for (int i = 0; i < discriminators; i++) {
+            Object discriminator = "discriminator-" + i;
+            JBoomerangFunction<BenchResource, Long> inner = discriminatorChain;
+            discriminatorChain = r -> boomerang.withResource(discriminator, Propagation.JOIN, JBoomerang.Args.none(), inner);
+        }
+    }
+
+    @Benchmark
+    public Long flatJoin() {
+        return boomerang.withResource(Propagation.JOIN, BenchResource::use);
+    }
+
+    @Benchmark
+    public Long nestedJoin() {
+        return boomerang.withResource(Propagation.JOIN, nestedJoin);
+    }
+
+    @Benchmark
+    public Long withNewStack() {
+        return boomerang.withResource(Propagation.JOIN, withNewStack);
+    }
+
+    @Benchmark
+    public Long manyDiscriminators() {
+        return boomerang.withResource(Propagation.JOIN, discriminatorChain);
+    }
+
+    @Benchmark
+    public Object propagationNone() {
+        return boomerang.withResource(Propagation.NONE, r -> r);
+    }
+
+}
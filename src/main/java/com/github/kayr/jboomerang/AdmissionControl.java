@@ -0,0 +1,164 @@
+package com.github.kayr.jboomerang;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many resources can be open at the same time, per discriminator and across all discriminators. Register
+ * it with {@link JBoomerang#limitOpenResources(AdmissionControl)}. Permits are taken when a resource is created and
+ * returned when it is closed, so joining a resource that is already open never waits.
+ * <p>
+ * Waiting threads are admitted in arrival order. A thread that is refused after the max wait gets an
+ * {@link IllegalStateException}; use a max wait of zero to fail fast instead of waiting.
+ */
+public class AdmissionControl {
+
+    private final Semaphore global;
+    private final int maxOpenPerDiscriminator;
+    private final Map<Object, Integer> discriminatorLimits;
+    private final long maxWaitNanos;
+    private final Map<Object, Semaphore> semaphores = new ConcurrentHashMap<>();
+
+    //stands in for the null discriminator, which a ConcurrentHashMap cannot hold
+    private static final Object NULL_KEY = new Object();
+
+    private AdmissionControl(Builder builder) {
+        this.global = builder.maxOpen == Integer.MAX_VALUE ? null : new Semaphore(builder.maxOpen, true);
+        this.maxOpenPerDiscriminator = builder.maxOpenPerDiscriminator;
+        this.discriminatorLimits = new HashMap<>(builder.discriminatorLimits);
+        this.maxWaitNanos = builder.maxWait.toNanos();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Takes a permit without waiting, unless other threads are already waiting for one.
+     */
+    public boolean tryAcquire(Object discriminator) {
+        try {
+            return tryAcquire(discriminator, 0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean tryAcquire(Object discriminator, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Semaphore local = semaphore(discriminator);
+        if (local != null && !local.tryAcquire(unit.toNanos(timeout), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        try {
+            if (global == null || global.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException x) {
+            releaseLocal(local);
+            throw x;
+        }
+        releaseLocal(local);
+        return false;
+    }
+
+    public void release(Object discriminator) {
+        releaseLocal(semaphore(discriminator));
+        if (global != null) {
+            global.release();
+        }
+    }
+
+    /**
+     * @return permits left for the discriminator, {@link Integer#MAX_VALUE} when it is not limited
+     */
+    public int availablePermits(Object discriminator) {
+        Semaphore local = semaphore(discriminator);
+        return local == null ? Integer.MAX_VALUE : local.availablePermits();
+    }
+
+    /**
+     * @return permits left across all discriminators, {@link Integer#MAX_VALUE} when there is no global limit
+     */
+    public int availablePermits() {
+        return global == null ? Integer.MAX_VALUE : global.availablePermits();
+    }
+
+    long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    private Semaphore semaphore(Object discriminator) {
+        Object key = discriminator == null ? NULL_KEY : discriminator;
+        Semaphore semaphore = semaphores.get(key);
+        if (semaphore != null) {
+            return semaphore;
+        }
+        int limit = discriminatorLimits.getOrDefault(discriminator, maxOpenPerDiscriminator);
+        if (limit == Integer.MAX_VALUE) {
+            return null;
+        }
+        return semaphores.computeIfAbsent(key, d -> new Semaphore(limit, true));
+    }
+
+    private static void releaseLocal(Semaphore local) {
+        if (local != null) {
+            local.release();
+        }
+    }
+
+    public static class Builder {
+        private int maxOpen = Integer.MAX_VALUE;
+        private int maxOpenPerDiscriminator = Integer.MAX_VALUE;
+        private final Map<Object, Integer> discriminatorLimits = new HashMap<>();
+        private Duration maxWait = Duration.ofSeconds(30);
+
+        Builder() {
+        }
+
+        /**
+         * Max open resources across all discriminators.
+         */
+        public Builder maxOpen(int maxOpen) {
+            this.maxOpen = checkLimit(maxOpen);
+            return this;
+        }
+
+        /**
+         * Max open resources for each discriminator without its own limit.
+         */
+        public Builder maxOpenPerDiscriminator(int maxOpen) {
+            this.maxOpenPerDiscriminator = checkLimit(maxOpen);
+            return this;
+        }
+
+        public Builder maxOpen(Object discriminator, int maxOpen) {
+            discriminatorLimits.put(discriminator, checkLimit(maxOpen));
+            return this;
+        }
+
+        public Builder maxWait(Duration maxWait) {
+            if (maxWait.isNegative()) {
+                throw new IllegalArgumentException("max wait should not be negative");
+            }
+            this.maxWait = maxWait;
+            return this;
+        }
+
+        public AdmissionControl build() {
+            return new AdmissionControl(this);
+        }
+
+        private static int checkLimit(int maxOpen) {
+            if (maxOpen < 1) {
+                throw new IllegalArgumentException("max open should be at least 1");
+            }
+            return maxOpen;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Closes resources on a small pool of daemon threads so that teardown does not add to the latency of the scope that
+ * opened them. Register it with {@link JBoomerang#closeInBackground(BackgroundCloser)}; only resources of factories
+ * returning true from {@link JBoomerang.ResourceFactory#isCloseDeferrable(Object)} are closed here.
+ * <p>
+ * The queue is bounded. When it is full the close runs on the calling thread, which slows producers down to the
+ * speed of the closer. Close failures cannot be thrown to the caller anymore and are passed to the failure handler
+ * together with the discriminator.
+ */
+public class BackgroundCloser implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackgroundCloser.class);
+
+    private final ThreadPoolExecutor executor;
+    private final BiConsumer<Object, Throwable> failureHandler;
+    private final long shutdownTimeoutNanos;
+    private final AtomicInteger callerRuns = new AtomicInteger();
+
+    private BackgroundCloser(Builder builder) {
+        this.failureHandler = builder.failureHandler;
+        this.shutdownTimeoutNanos = builder.shutdownTimeout.toNanos();
+        this.executor = new ThreadPoolExecutor(builder.threads, builder.threads, 0, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(builder.queueCapacity),
+                                               daemonThreads(builder.threadName),
+                                               new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    void execute(Object discriminator, Runnable close) {
+        Runnable task = () -> {
+            try {
+                close.run();
+            } catch (Throwable x) {//NOSONAR
+                handleFailure(discriminator, x);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException x) {
+            LOG.trace("--->Close queue is full or shut down, closing on the caller..{}", discriminator);
+            callerRuns.incrementAndGet();
+            task.run();
+        }
+    }
+
+    private void handleFailure(Object discriminator, Throwable x) {
+        try {
+            failureHandler.accept(discriminator, x);
+        } catch (Throwable e) {//NOSONAR
+            LOG.warn("close failure handler failed for [{}]", discriminator, e);
+        }
+    }
+
+    /**
+     * @return closes waiting in the queue, not counting the ones running.
+     */
+    public int countQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return how many closes ran on the calling thread because the queue was full.
+     */
+    public int countCallerRuns() {
+        return callerRuns.get();
+    }
+
+    /**
+     * Stops accepting closes and waits up to the shutdown timeout for the queued ones to complete. Closes submitted
+     * afterwards run on the calling thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                LOG.warn("timed out waiting for {} queued closes", countQueued());
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static class Builder {
+        private int threads = 1;
+        private int queueCapacity = 1024;
+        private Duration shutdownTimeout = Duration.ofSeconds(30);
+        private String threadName = "jboomerang-closer";
+        private BiConsumer<Object, Throwable> failureHandler =
+                (d, x) -> LOG.warn("failed to close resource for [{}] in the background", d, x);
+
+        Builder() {
+        }
+
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Closes waiting for a thread beyond this run on the caller.
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder shutdownTimeout(Duration shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+            return this;
+        }
+
+        public Builder threadName(String threadName) {
+            this.threadName = threadName;
+            return this;
+        }
+
+        /**
+         * Receives the discriminator and the failure of closes that ran in the background, by default they are
+         * logged.
+         */
+        public Builder onFailure(BiConsumer<Object, Throwable> failureHandler) {
+            this.failureHandler = failureHandler;
+            return this;
+        }
+
+        public BackgroundCloser build() {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads should be at least 1");
+            }
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("queue capacity should be at least 1");
+            }
+            return new BackgroundCloser(this);
+        }
+    }
+}
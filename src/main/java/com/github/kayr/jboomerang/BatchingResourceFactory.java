@@ -0,0 +1,21 @@
+package com.github.kayr.jboomerang;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link JBoomerang.ResourceFactory} that can close many resources of a discriminator at once, e.g. to commit or
+ * flush them in one round trip. Enable batching with {@link JBoomerang#batchCloses(int, java.time.Duration)}.
+ */
+public interface BatchingResourceFactory<R> extends JBoomerang.ResourceFactory<R> {
+
+    /**
+     * Closes all the resources. When this throws every scope in the batch fails with a {@link BoomerangCloseException}.
+     */
+    void closeAll(Object discriminator, List<R> resources);
+
+    @Override
+    default void close(Object discriminator, R resource) {
+        closeAll(discriminator, Collections.singletonList(resource));
+    }
+}
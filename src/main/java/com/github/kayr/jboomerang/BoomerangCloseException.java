@@ -1,25 +1,59 @@
 package com.github.kayr.jboomerang;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This exception will be thrown in case the resource factory fails to close a resource
  */
 public class BoomerangCloseException extends RuntimeException {
 
+    private static final Throwable[] NO_FAILURES = new Throwable[0];
+
     private final transient JBoomerang.ResourceFactory<?> factory;
+    //an array rather than a list, so that it serializes with the exception
+    private final Throwable[] failures;
 
 
     public BoomerangCloseException(String message) {
         super(message);
         this.factory = null;
+        this.failures = NO_FAILURES;
     }
 
     public BoomerangCloseException(String message, Throwable x, JBoomerang.ResourceFactory<?> resourceFactory) {
         super(message, x);
         this.factory = resourceFactory;
+        this.failures = failuresOf(x);
+    }
+
+    BoomerangCloseException(String message, Throwable x, JBoomerang.ResourceFactory<?> resourceFactory, boolean writableStackTrace) {
+        super(message, x, true, writableStackTrace);
+        this.factory = resourceFactory;
+        this.failures = failuresOf(x);
+    }
+
+    BoomerangCloseException(String message, List<Throwable> failures, JBoomerang.ResourceFactory<?> resourceFactory, boolean writableStackTrace) {
+        super(message, failures.get(0), true, writableStackTrace);
+        this.factory = resourceFactory;
+        this.failures = failures.toArray(NO_FAILURES);
+    }
+
+    private static Throwable[] failuresOf(Throwable cause) {
+        return cause == null ? NO_FAILURES : new Throwable[]{cause};
     }
 
     public JBoomerang.ResourceFactory<?> getFactory() {
         return factory;
     }
 
+    /**
+     * @return the failures this exception stands for, the cause first. Holds several when cleanup failures were
+     * aggregated by a {@link CloseFailurePolicy}, none when there is no cause.
+     */
+    public List<Throwable> getFailures() {
+        return Collections.unmodifiableList(Arrays.asList(failures));
+    }
+
 }
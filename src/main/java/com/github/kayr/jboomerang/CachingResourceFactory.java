@@ -0,0 +1,318 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link JBoomerang.ResourceFactory} that keeps closed resources keyed by discriminator and {@link JBoomerang.Args},
+ * e.g. one connection per tenant, so that the next scope with equal args can reuse one from any thread.
+ * <p>
+ * The number of idle resources is bounded across all keys. When it is exceeded the key used least recently loses
+ * its oldest resource, so a service with many tenants keeps its hot ones. Resources idle longer than the max idle
+ * time are closed when found or by {@link #evictExpired()}. Resources that saw an exception are not kept.
+ * Combine with {@link JBoomerang#joinByArgs(boolean)} so that nested scopes join per args too.
+ */
+public class CachingResourceFactory<R> implements JBoomerang.ResourceFactory<R>, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingResourceFactory.class);
+
+    private final JBoomerang.ResourceFactory<R> delegate;
+    private final int                           maxIdle;
+    private final int                           maxIdlePerKey;
+    private final long                          maxIdleNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    //access ordered, the least recently used key first
+    private final LinkedHashMap<Key, ArrayDeque<Idle<R>>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private int idleCount;
+    //set before close() takes the lock, so a put under the lock after it sees the flag
+    private volatile boolean closed;
+    private final Map<IdentityKey, Key> leased = new ConcurrentHashMap<>();
+    private final Map<IdentityKey, Boolean> failed = new ConcurrentHashMap<>();
+
+    private CachingResourceFactory(Builder<R> builder) {
+        this.delegate = builder.delegate;
+        this.maxIdle = builder.maxIdle;
+        this.maxIdlePerKey = builder.maxIdlePerKey;
+        this.maxIdleNanos = builder.maxIdleTime.toNanos();
+    }
+
+    public static <R> Builder<R> builder(JBoomerang.ResourceFactory<R> delegate) {
+        return new Builder<>(delegate);
+    }
+
+    @Override
+    public R create(Object discriminator, JBoomerang.Args args) {
+        Key key = new Key(discriminator, args);
+        R resource = take(key);
+        if (resource == null) {
+            resource = delegate.create(discriminator, args);
+            if (resource == null) {
+                throw new NullPointerException("Unexpected null returned for resource");
+            }
+        }
+        leased.put(new IdentityKey(resource), key);
+        return resource;
+    }
+
+    @Override
+    public void close(Object discriminator, R resource) {
+        IdentityKey id = new IdentityKey(resource);
+        Key key = leased.remove(id);
+        if (failed.remove(id) != null || key == null) {
+            destroy(discriminator, resource);
+            return;
+        }
+        List<Idle<R>> evicted = put(key, resource);
+        if (evicted == null) {
+            LOG.trace("-->Closing resource returned after close: {}", resource);
+            destroy(discriminator, resource);
+            return;
+        }
+        for (Idle<R> e : evicted) {
+            LOG.trace("-->Evicting cached resource: {}", e.resource);
+            destroy(e.key.discriminator, e.resource);
+        }
+    }
+
+    @Override
+    public void onException(Object discriminator, R resource) {
+        delegate.onException(discriminator, resource);
+        failed.put(new IdentityKey(resource), Boolean.TRUE);
+    }
+
+    private R take(Key key) {
+        List<Idle<R>> expired = new ArrayList<>(0);
+        R found = null;
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            ArrayDeque<Idle<R>> deque = idle.get(key);
+            Idle<R> entry;
+            while (deque != null && (entry = deque.pollFirst()) != null) {
+                idleCount--;
+                if (now - entry.returnedAt > maxIdleNanos) {
+                    expired.add(entry);
+                } else {
+                    found = entry.resource;
+                    break;
+                }
+            }
+            if (deque != null && deque.isEmpty()) {
+                idle.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Idle<R> e : expired) {
+            destroy(e.key.discriminator, e.resource);
+        }
+        return found;
+    }
+
+    /**
+     * @return the resources evicted to make room, or null if the factory is closed and the resource was not kept
+     */
+    private List<Idle<R>> put(Key key, R resource) {
+        List<Idle<R>> evicted = new ArrayList<>(0);
+        lock.lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            ArrayDeque<Idle<R>> deque = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+            deque.offerFirst(new Idle<>(key, resource, System.nanoTime()));
+            idleCount++;
+            if (deque.size() > maxIdlePerKey) {
+                evicted.add(deque.pollLast());
+                idleCount--;
+                if (deque.isEmpty()) {
+                    idle.remove(key);
+                }
+            }
+            Iterator<ArrayDeque<Idle<R>>> lru = idle.values().iterator();
+            while (idleCount > maxIdle && lru.hasNext()) {
+                ArrayDeque<Idle<R>> eldest = lru.next();
+                evicted.add(eldest.pollLast());
+                idleCount--;
+                if (eldest.isEmpty()) {
+                    lru.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return evicted;
+    }
+
+    /**
+     * Closes resources that have been idle for longer than the max idle time. Call this periodically, e.g from a
+     * scheduled executor.
+     */
+    public void evictExpired() {
+        List<Idle<R>> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            for (Iterator<ArrayDeque<Idle<R>>> it = idle.values().iterator(); it.hasNext(); ) {
+                ArrayDeque<Idle<R>> deque = it.next();
+                //newest first, so the expired ones are at the end
+                while (!deque.isEmpty() && now - deque.peekLast().returnedAt > maxIdleNanos) {
+                    expired.add(deque.pollLast());
+                    idleCount--;
+                }
+                if (deque.isEmpty()) {
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Idle<R> e : expired) {
+            destroy(e.key.discriminator, e.resource);
+        }
+    }
+
+    public int countIdle() {
+        lock.lock();
+        try {
+            return idleCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int countIdle(Object discriminator, JBoomerang.Args args) {
+        lock.lock();
+        try {
+            //a plain get would count as an access
+            Key key = new Key(discriminator, args);
+            for (Map.Entry<Key, ArrayDeque<Idle<R>>> e : idle.entrySet()) {
+                if (e.getKey().equals(key)) {
+                    return e.getValue().size();
+                }
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes all idle resources. Resources in use are closed when their scope ends instead of being cached.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        List<Idle<R>> all = new ArrayList<>();
+        lock.lock();
+        try {
+            for (ArrayDeque<Idle<R>> deque : idle.values()) {
+                all.addAll(deque);
+            }
+            idle.clear();
+            idleCount = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (Idle<R> e : all) {
+            destroy(e.key.discriminator, e.resource);
+        }
+    }
+
+    private void destroy(Object discriminator, R resource) {
+        try {
+            delegate.close(discriminator, resource);
+        } catch (RuntimeException x) {
+            LOG.warn("failed to close cached resource: {}", resource, x);
+        }
+    }
+
+    public static class Builder<R> {
+        private final JBoomerang.ResourceFactory<R> delegate;
+        private int maxIdle = 100;
+        private int maxIdlePerKey = 1;
+        private Duration maxIdleTime = Duration.ofMinutes(10);
+
+        Builder(JBoomerang.ResourceFactory<R> delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Idle resources kept across all keys, the least recently used keys lose theirs first.
+         */
+        public Builder<R> maxIdle(int maxIdle) {
+            this.maxIdle = maxIdle;
+            return this;
+        }
+
+        public Builder<R> maxIdlePerKey(int maxIdlePerKey) {
+            this.maxIdlePerKey = maxIdlePerKey;
+            return this;
+        }
+
+        public Builder<R> maxIdleTime(Duration maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+            return this;
+        }
+
+        public CachingResourceFactory<R> build() {
+            if (maxIdle < 0 || maxIdlePerKey < 0) {
+                throw new IllegalArgumentException("max idle should not be negative");
+            }
+            return new CachingResourceFactory<>(this);
+        }
+    }
+
+    private static final class Key {
+        private final Object          discriminator;
+        private final JBoomerang.Args args;
+        private final int             hash;
+
+        Key(Object discriminator, JBoomerang.Args args) {
+            this.discriminator = discriminator;
+            this.args = args == null ? JBoomerang.Args.none() : args;
+            this.hash = 31 * Objects.hashCode(discriminator) + this.args.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && Objects.equals(discriminator, key.discriminator) && args.equals(key.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Idle<R> {
+        private final Key  key;
+        private final R    resource;
+        private final long returnedAt;
+
+        Idle(Key key, R resource, long returnedAt) {
+            this.key = key;
+            this.resource = resource;
+            this.returnedAt = returnedAt;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.kayr.jboomerang;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The resources of the scopes open on a thread, captured so that a task can use them on another thread.
+ * <p>
+ * Each captured holder is leased, so the resource stays open until the task has run or has been discarded even if the
+ * capturing scope completes first. A captured scope can only be used once.
+ */
+final class CapturedScope<R> {
+
+    private final JBoomerang<R>                  boomerang;
+    private final Object[]                       discriminators;
+    private final JBoomerang.ResourceHolder<R>[] holders;
+    private final AtomicBoolean                  used = new AtomicBoolean();
+
+    @SuppressWarnings("unchecked")
+    CapturedScope(JBoomerang<R> boomerang, Scope<R> scope) {
+        this.boomerang = boomerang;
+        List<Object> visible = scope == null ? Collections.<Object>emptyList() : scope.visibleDiscriminators();
+        this.discriminators = visible.toArray();
+        this.holders = (JBoomerang.ResourceHolder<R>[]) new JBoomerang.ResourceHolder<?>[discriminators.length];
+        for (int i = 0; i < discriminators.length; i++) {
+            JBoomerang.ResourceHolder<R> holder = scope.peek(discriminators[i]);
+            try {
+                holder.lease();
+            } catch (RuntimeException x) {
+                //the capturing thread still holds these so they cannot be the last reference
+                for (int j = 0; j < i; j++) {
+                    holders[j].releaseLease();
+                }
+                throw x;
+            }
+            holders[i] = holder;
+        }
+    }
+
+    /**
+     * Runs the task with the captured resources installed on the current thread and then releases them.
+     */
+    <V> V call(Callable<V> task) throws Exception {
+        if (!used.compareAndSet(false, true)) {
+            throw new IllegalStateException("captured scope has already been used");
+        }
+        V result;
+        try {
+            result = boomerang.callWithHolders(discriminators, holders, 0, task);
+        } catch (Throwable x) {//NOSONAR
+            releaseAll(x);
+            return ExceptionUtil.sneakyThrow(x);
+        }
+        releaseAll(null);
+        return result;
+    }
+
+    void run(Runnable task) {
+        try {
+            call(() -> {
+                task.run();
+                return null;
+            });
+        } catch (Exception x) {
+            ExceptionUtil.sneakyThrow(x);
+        }
+    }
+
+    /**
+     * Releases the resources without running anything, e.g when the task was rejected or cancelled.
+     * Does nothing if the captured scope has already been used.
+     */
+    void discard() {
+        if (used.compareAndSet(false, true)) {
+            releaseAll(null);
+        }
+    }
+
+    private void releaseAll(Throwable error) {
+        RuntimeException closeError = null;
+        for (int i = holders.length - 1; i >= 0; i--) {
+            try {
+                boomerang.releaseLease(discriminators[i], holders[i]);
+            } catch (RuntimeException x) {
+                if (error != null) {
+                    error.addSuppressed(x);
+                } else if (closeError == null) {
+                    closeError = x;
+                } else {
+                    closeError.addSuppressed(x);
+                }
+            }
+        }
+        if (closeError != null) {
+            throw closeError;
+        }
+    }
+}
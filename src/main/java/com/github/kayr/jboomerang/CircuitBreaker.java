@@ -0,0 +1,351 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fails resource creation fast while a backend is failing, instead of letting every caller wait for the driver to
+ * time out. Register it with {@link JBoomerang#protectCreate(CircuitBreaker)}.
+ * <p>
+ * Each discriminator has its own circuit. Creates are counted in windows of the minimum calls; when a window ends
+ * with a failure rate at or above the threshold the circuit opens and creates fail with an
+ * {@link IllegalStateException} without calling the factory. After the open duration a few probes are let through,
+ * the circuit closes when they all succeed and opens again when one fails. All state is kept in atomics.
+ * <p>
+ * A create timeout runs {@link JBoomerang.ResourceFactory#create(Object, JBoomerang.Args)} on the create executor
+ * and stops waiting at the deadline, which counts as a failure. A resource created after the deadline is closed.
+ * Only configure timeouts for factories whose create can run on another thread. The default executor has a fixed
+ * number of threads, when they are all stuck on a hanging backend creates fail at once instead of starting more
+ * threads. Call {@link #close()} to stop it.
+ */
+public class CircuitBreaker implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private static final int CLOSED    = 0;
+    private static final int OPEN      = 1;
+    private static final int HALF_OPEN = 2;
+
+    private static final int REJECTED  = 0;
+    private static final int PERMITTED = 1;
+    private static final int PROBE     = 2;
+
+    private final double               failureRateThreshold;
+    private final int                  minimumCalls;
+    private final long                 openNanos;
+    private final int                  halfOpenProbes;
+    private final long                 createTimeoutNanos;
+    private final Map<Object, Long>    discriminatorTimeouts;
+    private final Executor             createExecutor;
+    private final ThreadPoolExecutor   ownExecutor;
+    private final Map<Object, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private CircuitBreaker(Builder builder) {
+        this.failureRateThreshold = builder.failureRateThreshold;
+        this.minimumCalls = builder.minimumCalls;
+        this.openNanos = builder.openDuration.toNanos();
+        this.halfOpenProbes = builder.halfOpenProbes;
+        this.createTimeoutNanos = builder.createTimeout.toNanos();
+        this.discriminatorTimeouts = new HashMap<>();
+        builder.discriminatorTimeouts.forEach((d, t) -> discriminatorTimeouts.put(d, t.toNanos()));
+        if (builder.createExecutor != null) {
+            this.ownExecutor = null;
+            this.createExecutor = builder.createExecutor;
+        } else {
+            //no queue, a create that finds every thread busy is rejected rather than waiting behind a hanging one
+            this.ownExecutor = new ThreadPoolExecutor(builder.createThreads, builder.createThreads, 60, TimeUnit.SECONDS,
+                                                      new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "jboomerang-create");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+            ownExecutor.allowCoreThreadTimeOut(true);
+            this.createExecutor = ownExecutor;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    <R> R create(Object discriminator, JBoomerang.Args args, JBoomerang.ResourceFactory<R> factory) {
+        Circuit circuit = circuit(discriminator);
+        int permit = circuit.tryAcquire();
+        if (permit == REJECTED) {
+            circuit.rejected.increment();
+            throw new IllegalStateException("circuit is open for [" + discriminator + "], not creating a resource");
+        }
+        boolean probe = permit == PROBE;
+        boolean success = false;
+        try {
+            long timeout = timeoutNanos(discriminator);
+            R resource = timeout > 0 ? createWithin(discriminator, args, factory, timeout) : factory.create(discriminator, args);
+            success = true;
+            return resource;
+        } finally {
+            if (success) {
+                circuit.onSuccess(probe);
+            } else {
+                circuit.onFailure(probe);
+            }
+        }
+    }
+
+    private <R> R createWithin(Object discriminator, JBoomerang.Args args, JBoomerang.ResourceFactory<R> factory, long timeoutNanos) {
+        CompletableFuture<R> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> factory.create(discriminator, args), createExecutor);
+        } catch (RejectedExecutionException x) {
+            throw new IllegalStateException("no thread free to create a resource for [" + discriminator + "]", x);
+        }
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException x) {
+            return ExceptionUtil.sneakyThrow(x.getCause());
+        } catch (TimeoutException x) {
+            closeWhenCreated(discriminator, factory, future);
+            throw new IllegalStateException("timed out creating a resource for [" + discriminator + "] after "
+                                                    + Duration.ofNanos(timeoutNanos), x);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            closeWhenCreated(discriminator, factory, future);
+            throw new IllegalStateException("interrupted while creating a resource for [" + discriminator + "]", x);
+        }
+    }
+
+    private static <R> void closeWhenCreated(Object discriminator, JBoomerang.ResourceFactory<R> factory, CompletableFuture<R> future) {
+        future.thenAccept(late -> {
+            if (late == null) {
+                return;
+            }
+            LOG.trace("--->Closing resource created after the deadline..{}", discriminator);
+            try {
+                factory.close(discriminator, late);
+            } catch (RuntimeException x) {
+                LOG.warn("failed to close resource created after the deadline for [{}]", discriminator, x);
+            }
+        });
+    }
+
+    private long timeoutNanos(Object discriminator) {
+        Long timeout = discriminatorTimeouts.get(discriminator);
+        return timeout != null ? timeout : createTimeoutNanos;
+    }
+
+    public State getState(Object discriminator) {
+        Circuit circuit = circuits.get(discriminator);
+        return circuit == null ? State.CLOSED : State.values()[circuit.currentState()];
+    }
+
+    /**
+     * @return creates refused because the circuit was open
+     */
+    public long countRejections(Object discriminator) {
+        Circuit circuit = circuits.get(discriminator);
+        return circuit == null ? 0 : circuit.rejected.sum();
+    }
+
+    /**
+     * Stops the default create executor, creates that are still running are interrupted. An executor passed to the
+     * builder is left to its owner.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdownNow();
+        }
+    }
+
+    private Circuit circuit(Object discriminator) {
+        Circuit circuit = circuits.get(discriminator);
+        return circuit != null ? circuit : circuits.computeIfAbsent(discriminator, d -> new Circuit());
+    }
+
+    private final class Circuit {
+        private final AtomicInteger state    = new AtomicInteger(CLOSED);
+        //calls in the high and failures in the low 32 bits, so one CAS updates both
+        private final AtomicLong    window   = new AtomicLong();
+        //probes let through and probes that succeeded while half open
+        private final AtomicInteger probes   = new AtomicInteger();
+        private final AtomicInteger probed   = new AtomicInteger();
+        private final LongAdder     rejected = new LongAdder();
+        private volatile long       openedAt;
+
+        int currentState() {
+            int s = state.get();
+            return s == OPEN && System.nanoTime() - openedAt >= openNanos ? HALF_OPEN : s;
+        }
+
+        int tryAcquire() {
+            int s = state.get();
+            if (s == CLOSED) {
+                return PERMITTED;
+            }
+            if (s == OPEN && System.nanoTime() - openedAt >= openNanos) {
+                state.compareAndSet(OPEN, HALF_OPEN);
+            }
+            return state.get() == HALF_OPEN && takeProbe() ? PROBE : REJECTED;
+        }
+
+        private boolean takeProbe() {
+            for (; ; ) {
+                int taken = probes.get();
+                if (taken >= halfOpenProbes) {
+                    return false;
+                }
+                if (probes.compareAndSet(taken, taken + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        //only probes decide a half open circuit, creates let through while it was closed may complete at any time
+        void onSuccess(boolean probe) {
+            if (probe) {
+                if (state.get() == HALF_OPEN && probed.incrementAndGet() >= halfOpenProbes && state.compareAndSet(HALF_OPEN, CLOSED)) {
+                    window.set(0);
+                }
+            } else if (state.get() == CLOSED) {
+                record(false);
+            }
+        }
+
+        void onFailure(boolean probe) {
+            if (probe) {
+                open(HALF_OPEN);
+            } else if (state.get() == CLOSED) {
+                record(true);
+            }
+        }
+
+        private void record(boolean failed) {
+            for (; ; ) {
+                long current = window.get();
+                long calls = (current >>> 32) + 1;
+                long failures = (current & 0xFFFFFFFFL) + (failed ? 1 : 0);
+                boolean full = calls >= minimumCalls;
+                if (window.compareAndSet(current, full ? 0 : calls << 32 | failures)) {
+                    if (full && failures >= failureRateThreshold * calls) {
+                        open(CLOSED);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void open(int from) {
+            //reset before publishing, the probes start once the state is seen as open
+            probes.set(0);
+            probed.set(0);
+            openedAt = System.nanoTime();
+            if (state.compareAndSet(from, OPEN)) {
+                LOG.debug("circuit opened after failures creating resources");
+            }
+        }
+    }
+
+    public static class Builder {
+        private double   failureRateThreshold = 0.5;
+        private int      minimumCalls         = 20;
+        private Duration openDuration         = Duration.ofSeconds(10);
+        private int      halfOpenProbes       = 1;
+        private Duration createTimeout        = Duration.ZERO;
+        private Executor createExecutor;
+        private int      createThreads        = 8;
+        private final Map<Object, Duration> discriminatorTimeouts = new HashMap<>();
+
+        Builder() {
+        }
+
+        /**
+         * The fraction of failed creates, between 0 and 1, that opens the circuit. Defaults to 0.5.
+         */
+        public Builder failureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /**
+         * The number of creates in each window the failure rate is computed over. Defaults to 20.
+         */
+        public Builder minimumCalls(int minimumCalls) {
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * How long the circuit stays open before probing. Defaults to 10 seconds.
+         */
+        public Builder openDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+            return this;
+        }
+
+        /**
+         * The creates let through while half open, all must succeed to close the circuit. Defaults to 1.
+         */
+        public Builder halfOpenProbes(int halfOpenProbes) {
+            this.halfOpenProbes = halfOpenProbes;
+            return this;
+        }
+
+        /**
+         * The deadline for creating a resource of any discriminator. Zero, the default, means no deadline.
+         */
+        public Builder createTimeout(Duration createTimeout) {
+            this.createTimeout = createTimeout;
+            return this;
+        }
+
+        public Builder createTimeout(Object discriminator, Duration createTimeout) {
+            discriminatorTimeouts.put(discriminator, createTimeout);
+            return this;
+        }
+
+        /**
+         * The threads of the default create executor, and so the most creates with a deadline that can run at once.
+         * Defaults to 8.
+         */
+        public Builder createThreads(int createThreads) {
+            this.createThreads = createThreads;
+            return this;
+        }
+
+        /**
+         * Runs creates that have a deadline, instead of the default executor. Bound it, a create that hangs keeps its
+         * thread after the deadline.
+         */
+        public Builder createExecutor(Executor createExecutor) {
+            this.createExecutor = createExecutor;
+            return this;
+        }
+
+        public CircuitBreaker build() {
+            if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+                throw new IllegalArgumentException("failure rate threshold should be above 0 and at most 1");
+            }
+            if (minimumCalls < 1 || halfOpenProbes < 1 || createThreads < 1) {
+                throw new IllegalArgumentException("minimum calls, half open probes and create threads should be at least 1");
+            }
+            return new CircuitBreaker(this);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit for closes. The first thread closing a resource of a discriminator opens a batch and waits for up to
+ * the window, threads closing in the meantime add theirs and wait. The batch is closed by the first thread when the
+ * window elapses or the batch is full, and everyone gets the result. A failure is wrapped for each thread so that
+ * they do not share one mutable exception.
+ * <p>
+ * Uses a lock instead of monitors so virtual threads waiting for a batch do not pin their carrier.
+ */
+final class CloseBatcher<R> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloseBatcher.class);
+
+    private final BatchingResourceFactory<R> factory;
+    private final int                        maxBatchSize;
+    private final long                       windowNanos;
+    private final Map<Object, Group<R>>      groups = new ConcurrentHashMap<>();
+
+    CloseBatcher(BatchingResourceFactory<R> factory, int maxBatchSize, long windowNanos) {
+        this.factory = factory;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = windowNanos;
+    }
+
+    void close(Object discriminator, R resource) {
+        Group<R> group = groups.computeIfAbsent(discriminator, d -> new Group<>());
+        Batch<R> batch;
+        boolean leader;
+        group.lock.lock();
+        try {
+            batch = group.open;
+            leader = batch == null;
+            if (leader) {
+                batch = new Batch<>();
+                group.open = batch;
+            }
+            batch.resources.add(resource);
+            if (batch.resources.size() >= maxBatchSize) {
+                group.open = null;
+                group.changed.signalAll();
+            }
+            if (leader) {
+                awaitWindow(group, batch);
+            }
+        } finally {
+            group.lock.unlock();
+        }
+
+        if (leader) {
+            flush(discriminator, group, batch);
+        } else {
+            awaitFlush(group, batch);
+        }
+        Throwable failure = batch.failure;
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            //every scope in the batch gets its own exception, they add their own suppressed failures to it
+            throw new BoomerangCloseException("error closing a batch of " + batch.resources.size() + " resources", failure, factory);
+        }
+    }
+
+    private void awaitWindow(Group<R> group, Batch<R> batch) {
+        long remaining = windowNanos;
+        boolean interrupted = false;
+        while (group.open == batch && remaining > 0) {
+            try {
+                remaining = group.changed.awaitNanos(remaining);
+            } catch (InterruptedException x) {
+                //close what we have now
+                interrupted = true;
+                break;
+            }
+        }
+        if (group.open == batch) {
+            group.open = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(Object discriminator, Group<R> group, Batch<R> batch) {
+        LOG.trace("--->Closing a batch of {}..{}", batch.resources.size(), discriminator);
+        try {
+            factory.closeAll(discriminator, batch.resources);
+        } catch (Throwable x) {//NOSONAR
+            batch.failure = x;
+        }
+        group.lock.lock();
+        try {
+            batch.done = true;
+            group.changed.signalAll();
+        } finally {
+            group.lock.unlock();
+        }
+    }
+
+    private void awaitFlush(Group<R> group, Batch<R> batch) {
+        boolean interrupted = false;
+        group.lock.lock();
+        try {
+            //the resource is part of the batch, so wait for it whatever happens
+            while (!batch.done) {
+                try {
+                    group.changed.await();
+                } catch (InterruptedException x) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            group.lock.unlock();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Group<R> {
+        private final ReentrantLock lock    = new ReentrantLock();
+        private final Condition     changed = lock.newCondition();
+        private       Batch<R>      open;
+    }
+
+    private static final class Batch<R> {
+        private final List<R>   resources = new ArrayList<>();
+        private       boolean   done;
+        private       Throwable failure;
+    }
+}
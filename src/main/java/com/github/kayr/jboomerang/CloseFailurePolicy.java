@@ -0,0 +1,75 @@
+package com.github.kayr.jboomerang;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Makes the failure path cheap for when a backend is down and every scope fails. Register it with
+ * {@link JBoomerang#closeFailures(CloseFailurePolicy)}.
+ * <p>
+ * Only a sample of the {@link BoomerangCloseException}s fill in their stack trace, the cause keeps its own. With
+ * aggregation a failed scope whose onException or close also fails gets a single suppressed
+ * {@link BoomerangCloseException} listing those failures in {@link BoomerangCloseException#getFailures()}, instead of
+ * a suppressed exception wrapping each of them; an onException failure no longer prevents the close.
+ */
+public class CloseFailurePolicy {
+
+    private final double  stackTraceSampleRate;
+    private final boolean aggregate;
+
+    private CloseFailurePolicy(Builder builder) {
+        this.stackTraceSampleRate = builder.stackTraceSampleRate;
+        this.aggregate = builder.aggregate;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    boolean isAggregate() {
+        return aggregate;
+    }
+
+    boolean sampleStackTrace() {
+        return stackTraceSampleRate >= 1 || (stackTraceSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < stackTraceSampleRate);
+    }
+
+    BoomerangCloseException closeFailed(Throwable cause, JBoomerang.ResourceFactory<?> factory) {
+        return new BoomerangCloseException("error closing resource", cause, factory, sampleStackTrace());
+    }
+
+    BoomerangCloseException cleanupFailed(List<Throwable> failures, JBoomerang.ResourceFactory<?> factory) {
+        return new BoomerangCloseException(failures.size() + " failure(s) cleaning up after the error", failures, factory, sampleStackTrace());
+    }
+
+    public static class Builder {
+        private double  stackTraceSampleRate = 0.01;
+        private boolean aggregate            = true;
+
+        Builder() {
+        }
+
+        /**
+         * The fraction of close exceptions that fill in their stack trace, between 0 and 1. Defaults to 0.01.
+         */
+        public Builder stackTraceSampleRate(double stackTraceSampleRate) {
+            this.stackTraceSampleRate = stackTraceSampleRate;
+            return this;
+        }
+
+        /**
+         * Whether the cleanup failures of a failed scope are added to its error as one exception. Defaults to true.
+         */
+        public Builder aggregate(boolean aggregate) {
+            this.aggregate = aggregate;
+            return this;
+        }
+
+        public CloseFailurePolicy build() {
+            if (stackTraceSampleRate < 0 || stackTraceSampleRate > 1) {
+                throw new IllegalArgumentException("stack trace sample rate should be between 0 and 1");
+            }
+            return new CloseFailurePolicy(this);
+        }
+    }
+}
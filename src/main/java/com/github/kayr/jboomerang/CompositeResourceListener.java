@@ -0,0 +1,63 @@
+package com.github.kayr.jboomerang;
+
+final class CompositeResourceListener implements ResourceListener {
+
+    private final ResourceListener[] listeners;
+
+    private CompositeResourceListener(ResourceListener[] listeners) {
+        this.listeners = listeners;
+    }
+
+    static ResourceListener of(ResourceListener current, ResourceListener added) {
+        if (current instanceof CompositeResourceListener) {
+            ResourceListener[] existing = ((CompositeResourceListener) current).listeners;
+            ResourceListener[] all = new ResourceListener[existing.length + 1];
+            System.arraycopy(existing, 0, all, 0, existing.length);
+            all[existing.length] = added;
+            return new CompositeResourceListener(all);
+        }
+        return new CompositeResourceListener(new ResourceListener[]{current, added});
+    }
+
+    @Override
+    public void onCreate(Object discriminator, JBoomerang.Propagation propagation, long createNanos) {
+        for (ResourceListener l : listeners) {
+            l.onCreate(discriminator, propagation, createNanos);
+        }
+    }
+
+    @Override
+    public void onJoin(Object discriminator, int depth) {
+        for (ResourceListener l : listeners) {
+            l.onJoin(discriminator, depth);
+        }
+    }
+
+    @Override
+    public void onClose(Object discriminator, long holdNanos, long closeNanos) {
+        for (ResourceListener l : listeners) {
+            l.onClose(discriminator, holdNanos, closeNanos);
+        }
+    }
+
+    @Override
+    public void onException(Object discriminator) {
+        for (ResourceListener l : listeners) {
+            l.onException(discriminator);
+        }
+    }
+
+    @Override
+    public void onCloseFailure(Object discriminator, Throwable error) {
+        for (ResourceListener l : listeners) {
+            l.onCloseFailure(discriminator, error);
+        }
+    }
+
+    @Override
+    public void onAdmissionWait(Object discriminator, long waitNanos, boolean admitted) {
+        for (ResourceListener l : listeners) {
+            l.onAdmissionWait(discriminator, waitNanos, admitted);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.kayr.jboomerang;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs every task with the resources of the scope that submitted it.
+ */
+class ContextPropagatingExecutor<R> implements Executor {
+
+    private final JBoomerang<R> boomerang;
+    private final Executor      delegate;
+
+    ContextPropagatingExecutor(JBoomerang<R> boomerang, Executor delegate) {
+        this.boomerang = boomerang;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        CapturedScope<R> captured = boomerang.captureScope();
+        try {
+            delegate.execute(() -> captured.run(command));
+        } catch (RejectedExecutionException x) {
+            captured.discard();
+            throw x;
+        }
+    }
+}
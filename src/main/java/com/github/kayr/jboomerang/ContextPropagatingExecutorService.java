@@ -0,0 +1,123 @@
+package com.github.kayr.jboomerang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * An {@link ExecutorService} that runs every task with the resources of the scope that submitted it.
+ * Futures cancelled before their task starts release the resources straight away.
+ */
+class ContextPropagatingExecutorService<R> extends AbstractExecutorService {
+
+    private final JBoomerang<R>   boomerang;
+    private final ExecutorService delegate;
+
+    ContextPropagatingExecutorService(JBoomerang<R> boomerang, ExecutorService delegate) {
+        this.boomerang = boomerang;
+        this.delegate = delegate;
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new ContextFutureTask<>(boomerang.captureScope(), callable);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return newTaskFor(Executors.callable(runnable, value));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command instanceof ContextFutureTask) {
+            executeCaptured(command, ((ContextFutureTask<?, ?>) command).captured);
+        } else {
+            CapturedScope<R> captured = boomerang.captureScope();
+            executeCaptured(new ContextRunnable<>(captured, command), captured);
+        }
+    }
+
+    private void executeCaptured(Runnable command, CapturedScope<?> captured) {
+        try {
+            delegate.execute(command);
+        } catch (RejectedExecutionException x) {
+            captured.discard();
+            throw x;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * Releases the resources of the tasks that never ran and returns them as they were submitted.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = delegate.shutdownNow();
+        List<Runnable> submitted = new ArrayList<>(pending.size());
+        for (Runnable runnable : pending) {
+            if (runnable instanceof ContextFutureTask) {
+                ((ContextFutureTask<?, ?>) runnable).captured.discard();
+                submitted.add(runnable);
+            } else if (runnable instanceof ContextRunnable) {
+                ContextRunnable<?> task = (ContextRunnable<?>) runnable;
+                task.captured.discard();
+                submitted.add(task.command);
+            } else {
+                submitted.add(runnable);
+            }
+        }
+        return submitted;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    private static class ContextRunnable<R> implements Runnable {
+
+        private final CapturedScope<R> captured;
+        private final Runnable         command;
+
+        ContextRunnable(CapturedScope<R> captured, Runnable command) {
+            this.captured = captured;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            captured.run(command);
+        }
+    }
+
+    private static class ContextFutureTask<R, T> extends FutureTask<T> {
+
+        private final CapturedScope<R> captured;
+
+        ContextFutureTask(CapturedScope<R> captured, Callable<T> callable) {
+            super(() -> captured.call(callable));
+            this.captured = captured;
+        }
+
+        @Override
+        protected void done() {
+            //releases the resources if the task was cancelled before it could run
+            captured.discard();
+        }
+    }
+}
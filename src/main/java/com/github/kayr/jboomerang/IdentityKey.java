@@ -0,0 +1,25 @@
+package com.github.kayr.jboomerang;
+
+/**
+ * Wraps an object so that it can be used as a map key by identity rather than by equals/hashCode.
+ */
+final class IdentityKey {
+
+    private final Object value;
+    private final int hash;
+
+    IdentityKey(Object value) {
+        this.value = value;
+        this.hash = System.identityHashCode(value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IdentityKey && ((IdentityKey) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -3,22 +3,156 @@ package com.github.kayr.jboomerang;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
 
 public class JBoomerang<R> {
 
     public static final Object COMMON_DISCRIMINATOR = new Object();
 
 
-    public enum Propagation {WITH_NEW, JOIN, REQUIRED, NONE}
+    /**
+     * {@link #NESTED} joins like {@link #JOIN} when nothing is open, otherwise it runs with a child of the open
+     * resource created by {@link ResourceFactory#createChild(Object, Object)}, e.g. a savepoint. {@link #SUSPEND} runs
+     * without a resource and hides the open ones from nested calls, see {@link ResourceFactory#onSuspend(Object, Object)}.
+     */
+    public enum Propagation {WITH_NEW, JOIN, REQUIRED, NONE, NESTED, SUSPEND}
+
+    /**
+     * Where the open scopes are kept. {@link #SCOPED_VALUE} needs a JVM with {@code java.lang.ScopedValue} and suits
+     * virtual threads: nothing is stored per thread and threads forked in a {@code StructuredTaskScope} join the
+     * resources of the scope they were forked from.
+     */
+    public enum ScopeCarrier {THREAD_LOCAL, SCOPED_VALUE}
 
     private static final Logger LOG = LoggerFactory.getLogger(JBoomerang.class);
-    private ThreadLocal<Map<Object, Deque<ResourceHolder<R>>>> resourceStack = ThreadLocal.withInitial(HashMap::new);
-    private ThreadLocal<Deque<Object>> discriminatorStack = ThreadLocal.withInitial(ArrayDeque::new);
+    private ScopeStore<R> scopeStore;
     private ResourceFactory<R> resourceFactory;
+    private ResourceListener listener;
+    private OpenResourceRegistry registry;
+    private AdmissionControl admission;
+    private BackgroundCloser closer;
+    private CloseBatcher<R> batcher;
+    private LeakWatchdog watchdog;
+    private boolean joinByArgs;
+    private CircuitBreaker breaker;
+    private CloseFailurePolicy failurePolicy;
 
     public JBoomerang(ResourceFactory<R> resourceFactory) {
+        this(resourceFactory, ScopeCarrier.THREAD_LOCAL);
+    }
+
+    public JBoomerang(ResourceFactory<R> resourceFactory, ScopeCarrier carrier) {
         this.resourceFactory = resourceFactory;
+        this.scopeStore = carrier == ScopeCarrier.SCOPED_VALUE ? new ScopedValueScopeStore<>() : new ThreadLocalScopeStore<>();
+    }
+
+    public static boolean isScopedValueSupported() {
+        return ScopedValueScopeStore.isSupported();
+    }
+
+    /**
+     * Registers a listener for resource lifecycle events. Several listeners can be added; when none is added the
+     * events and their timings are not computed at all.
+     */
+    public JBoomerang<R> addListener(ResourceListener listener) {
+        this.listener = this.listener == null ? listener : CompositeResourceListener.of(this.listener, listener);
+        return this;
+    }
+
+    /**
+     * Records every resource opened and closed by this boomerang in the registry so that open resources can be
+     * inspected across all threads.
+     */
+    public JBoomerang<R> trackOpenResources(OpenResourceRegistry registry) {
+        this.registry = registry;
+        return this;
+    }
+
+    /**
+     * When enabled {@link Propagation#JOIN}, {@link Propagation#REQUIRED} and {@link Propagation#NESTED} only use an
+     * open resource of the discriminator that was created with equal {@link Args}, e.g. one per tenant, and JOIN
+     * creates a new one when there is none. Disabled by default, then the innermost resource is used whatever its args.
+     */
+    public JBoomerang<R> joinByArgs(boolean joinByArgs) {
+        this.joinByArgs = joinByArgs;
+        return this;
+    }
+
+    /**
+     * Watches a sample of the created resources and reports those held longer than the watchdog's threshold.
+     */
+    public JBoomerang<R> watchForLeaks(LeakWatchdog watchdog) {
+        this.watchdog = watchdog;
+        return this;
+    }
+
+    /**
+     * Creates resources through the circuit breaker, so creates fail fast while the backend is failing and can be
+     * given a deadline.
+     */
+    public JBoomerang<R> protectCreate(CircuitBreaker breaker) {
+        this.breaker = breaker;
+        return this;
+    }
+
+    /**
+     * Makes close failures cheaper, see {@link CloseFailurePolicy}.
+     */
+    public JBoomerang<R> closeFailures(CloseFailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy;
+        return this;
+    }
+
+    /**
+     * Limits the number of resources this boomerang can have open at the same time. Only creating a resource takes a
+     * permit, joins never wait, but a {@link Propagation#WITH_NEW} nested in a scope that holds the last permit will
+     * wait for the max wait and fail.
+     */
+    public JBoomerang<R> limitOpenResources(AdmissionControl admission) {
+        this.admission = admission;
+        return this;
+    }
+
+    /**
+     * Closes resources of factories that allow it on the closer's threads instead of the thread leaving the scope.
+     * Close failures go to the closer's failure handler as they can no longer be thrown to the caller.
+     */
+    public JBoomerang<R> closeInBackground(BackgroundCloser closer) {
+        this.closer = closer;
+        return this;
+    }
+
+    /**
+     * Closes resources of the same discriminator that are closed at about the same time with one call to
+     * {@link BatchingResourceFactory#closeAll(Object, List)}. A close waits for up to the window for others to join,
+     * or until the batch is full, and each scope still gets the result of its own batch.
+     */
+    public JBoomerang<R> batchCloses(int maxBatchSize, Duration window) {
+        if (!(resourceFactory instanceof BatchingResourceFactory)) {
+            throw new IllegalArgumentException("batching needs a BatchingResourceFactory: " + resourceFactory);
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("max batch size should be at least 1");
+        }
+        this.batcher = new CloseBatcher<>((BatchingResourceFactory<R>) resourceFactory, maxBatchSize, window.toNanos());
+        return this;
+    }
+
+    /**
+     * When enabled the per thread structures are cleared and kept for the next outermost scope instead of being
+     * removed from the thread local, and resource holders are recycled. This avoids allocations on every call at the
+     * cost of keeping a small object per thread alive. Has no effect with {@link ScopeCarrier#SCOPED_VALUE}.
+     */
+    public JBoomerang<R> retainThreadState(boolean retain) {
+        if (scopeStore instanceof ThreadLocalScopeStore) {
+            ((ThreadLocalScopeStore<R>) scopeStore).setRetainThreadState(retain);
+        }
+        return this;
     }
 
 
@@ -32,17 +166,11 @@ public class JBoomerang<R> {
     }
 
     public void consume(Propagation propagation, JBoomerangConsumer<R> fx) {
-        withResource(propagation, r -> {
-            fx.accept(r);
-            return Void.TYPE;
-        });
+        execute(COMMON_DISCRIMINATOR, propagation, Args.none(), false, null, fx);
     }
 
     public void consume(Object discriminator, Propagation propagation, JBoomerangConsumer<R> fx) {
-        withResource(discriminator, propagation, Args.none(), r -> {
-            fx.accept(r);
-            return Void.TYPE;
-        });
+        execute(discriminator, propagation, Args.none(), false, null, fx);
     }
 
     public <V> V withResource(Propagation propagation, JBoomerangFunction<R, V> fx) {
@@ -50,41 +178,310 @@ public class JBoomerang<R> {
     }
 
     public <V> V withResource(Object discriminator, Propagation propagation, Args args, JBoomerangFunction<R, V> fx) {
+        return execute(discriminator, propagation, args, false, fx, null);
+    }
+
+    public <V> V withLazyResource(JBoomerangFunction<ResourceHandle<R>, V> fx) {
+        return withLazyResource(COMMON_DISCRIMINATOR, Propagation.JOIN, Args.none(), fx);
+    }
+
+    /**
+     * Like {@link #withResource(Object, Propagation, Args, JBoomerangFunction)} but the resource is only created the
+     * first time {@link ResourceHandle#get()} is called, or when a nested {@code withResource} joins it. If it is never
+     * created the factory is not asked to close it.
+     */
+    public <V> V withLazyResource(Object discriminator, Propagation propagation, Args args, JBoomerangFunction<ResourceHandle<R>, V> fx) {
+        return execute(discriminator, propagation, args, true, r -> fx.apply(joinedHolder(discriminator, args)), null);
+    }
+
+    /**
+     * Lazy variant that hands {@code fx} a proxy of the resource interface instead of a handle. The resource is
+     * created on the first method call on the proxy other than {@code equals}, {@code hashCode} and {@code toString}.
+     */
+    public <V> V withLazyResource(Class<R> resourceInterface, Object discriminator, Propagation propagation, Args args, JBoomerangFunction<R, V> fx) {
+        return withLazyResource(discriminator, propagation, args, h -> fx.apply(LazyResourceProxy.create(resourceInterface, h)));
+    }
+
+    public <V> CompletionStage<V> withResourceAsync(JBoomerangFunction<R, ? extends CompletionStage<V>> fx) {
+        return withResourceAsync(COMMON_DISCRIMINATOR, Propagation.JOIN, Args.none(), fx);
+    }
+
+    /**
+     * Like {@link #withResource(Object, Propagation, Args, JBoomerangFunction)} for functions that complete
+     * asynchronously. The resource is kept open until the returned stage completes and is then closed, after calling
+     * onException if the stage failed. No thread waits for the stage in the meantime.
+     * <p>
+     * As with nested synchronous calls, a failed stage only triggers onException if this call opened the resource.
+     * The returned stage completes after the resource has been released.
+     */
+    public <V> CompletionStage<V> withResourceAsync(Object discriminator, Propagation propagation, Args args, JBoomerangFunction<R, ? extends CompletionStage<V>> fx) {
+        AsyncLease lease = new AsyncLease();
+        CompletionStage<V> stage;
+        try {
+            stage = withResource(discriminator, propagation, args, r -> {
+                if (r != null) {
+                    lease.take(joinedHolder(discriminator, args));
+                }
+                CompletionStage<V> s = fx.apply(r);
+                if (s == null) {
+                    throw new NullPointerException("Unexpected null returned for completion stage");
+                }
+                return s;
+            });
+        } catch (Throwable x) {//NOSONAR
+            if (lease.holder != null) {
+                try {
+                    lease.release(discriminator, x);
+                } catch (RuntimeException closeError) {
+                    x.addSuppressed(closeError);
+                }
+            }
+            return ExceptionUtil.sneakyThrow(x);
+        }
+
+        if (lease.holder == null) {
+            return stage;
+        }
+
+        CompletableFuture<V> result = new CompletableFuture<>();
+        stage.whenComplete((value, error) -> {
+            try {
+                lease.release(discriminator, error);
+            } catch (Throwable closeError) {//NOSONAR the result must complete whatever the close throws
+                if (error == null) {
+                    result.completeExceptionally(closeError);
+                    return;
+                }
+                error.addSuppressed(closeError);
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    private final class AsyncLease {
+        private ResourceHolder<R> holder;
+        private boolean           opened;
+
+        void take(ResourceHolder<R> holder) {
+            holder.lease();
+            this.holder = holder;
+            //the count is one when this call created the holder
+            this.opened = holder.isOwnedByCurrentThread() && holder.getCount() == 1;
+        }
+
+        void release(Object discriminator, Throwable error) {
+            if (error != null && opened) {
+                holder.markFailed();
+            }
+            releaseLease(discriminator, holder);
+        }
+    }
+
+    /**
+     * Wraps the task so that it runs with the resources of the current scope, wherever it runs. The resources stay
+     * open until the task completes even if the current scope completes first.
+     */
+    public Runnable wrapRunnable(Runnable task) {
+        CapturedScope<R> captured = captureScope();
+        return () -> captured.run(task);
+    }
+
+    /**
+     * @see #wrapRunnable(Runnable)
+     */
+    public <V> Callable<V> wrapCallable(Callable<V> task) {
+        CapturedScope<R> captured = captureScope();
+        return () -> captured.call(task);
+    }
+
+    /**
+     * Returns an executor that runs each task with the resources of the scope that submitted it. Tasks that JOIN
+     * share the submitter's resource instead of opening new ones; the resource is closed after the last of them
+     * completes. Failures of these tasks are reported through their futures and do not trigger onException.
+     */
+    public Executor wrapExecutor(Executor executor) {
+        return new ContextPropagatingExecutor<>(this, executor);
+    }
+
+    /**
+     * @see #wrapExecutor(Executor)
+     */
+    public ExecutorService wrapExecutorService(ExecutorService executor) {
+        return new ContextPropagatingExecutorService<>(this, executor);
+    }
+
+    /**
+     * Like {@link CompletableFuture#supplyAsync(Supplier, Executor)} with the supplier running with the resources of
+     * the current scope.
+     */
+    public <V> CompletableFuture<V> supplyAsync(Supplier<V> supplier, Executor executor) {
+        CapturedScope<R> captured = captureScope();
+        CompletableFuture<V> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    //cancelled before it could run
+                    captured.discard();
+                    return;
+                }
+                try {
+                    future.complete(captured.call(supplier::get));
+                } catch (Throwable x) {//NOSONAR
+                    future.completeExceptionally(x);
+                }
+            });
+        } catch (RejectedExecutionException x) {
+            captured.discard();
+            throw x;
+        }
+        return future;
+    }
+
+    /**
+     * @see #supplyAsync(Supplier, Executor)
+     */
+    public CompletableFuture<Void> runAsync(Runnable task, Executor executor) {
+        return supplyAsync(() -> {
+            task.run();
+            return null;
+        }, executor);
+    }
+
+    /**
+     * Splits the items into chunks and runs {@code fx} on each chunk on the options' executor, sharing the caller's
+     * resource or giving each worker its own, see {@link ParallelOptions}. Blocks until all workers are done.
+     * <p>
+     * Resources are closed on the calling thread after all workers complete, worker resources in the reverse order they
+     * were opened. If chunks fail no more chunks are started, the failure of the first failed chunk is thrown with the
+     * others suppressed, and the resources are notified with onException.
+     *
+     * @return the result of each chunk, in chunk order
+     */
+    public <T, V> List<V> withResourceParallel(Collection<? extends T> items, ParallelOptions options, JBoomerangChunkFunction<R, T, V> fx) {
+        return new ParallelRun<>(this, items, options, fx).run();
+    }
+
+    /**
+     * Like {@link #withResourceParallel(Collection, ParallelOptions, JBoomerangChunkFunction)} with the chunk results
+     * merged in chunk order, null results are skipped.
+     */
+    public <T, V> Optional<V> withResourceParallel(Collection<? extends T> items, ParallelOptions options, JBoomerangChunkFunction<R, T, V> fx, BinaryOperator<V> merge) {
+        return withResourceParallel(items, options, fx).stream().filter(Objects::nonNull).reduce(merge);
+    }
+
+    CapturedScope<R> captureScope() {
+        return new CapturedScope<>(this, scopeStore.current());
+    }
+
+    /**
+     * Installs the holders one discriminator at a time, outermost first, and runs the task inside them.
+     */
+    <V> V callWithHolders(Object[] discriminators, ResourceHolder<R>[] holders, int index, Callable<V> task) throws Exception {
+        if (index == discriminators.length) {
+            return task.call();
+        }
+        Object discriminator = discriminators[index];
+        ResourceHolder<R> holder = holders[index];
+        Scope<R> scope = scopeStore.enter(discriminator);
+        try {
+            return scopeStore.call(scope, discriminator, holder, r -> callWithHolders(discriminators, holders, index + 1, task), null, null);
+        } finally {
+            scopeStore.release(scope, discriminator, holder);
+            scopeStore.exit(scope);
+        }
+    }
+
+    /**
+     * Runs either the function or the consumer, this saves consume from wrapping the consumer in a function.
+     */
+    private <V> V execute(Object discriminator, Propagation propagation, Args args, boolean lazy, JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) {
+        Object event = ResourceEvents.EVENTS.beginScope();
+        if (event == null) {
+            return executeScope(discriminator, propagation, args, lazy, fx, consumer);
+        }
+        Scope<R> outer = scopeStore.current();
+        int depth = outer == null ? 0 : outer.discriminatorDepth();
+        int holders = outer == null ? 0 : outer.depth(discriminator);
+        try {
+            return executeScope(discriminator, propagation, args, lazy, fx, consumer);
+        } finally {
+            ResourceEvents.EVENTS.commitScope(event, discriminator, propagation, depth, holders);
+        }
+    }
+
+    private <V> V executeScope(Object discriminator, Propagation propagation, Args args, boolean lazy, JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) {
 
         if (propagation == Propagation.NONE) {
-            return handleNonePropagation(fx);
+            return handleNonePropagation(fx, consumer);
+        }
+
+        if (propagation == Propagation.SUSPEND) {
+            return executeSuspended(discriminator, fx, consumer);
         }
 
+        Scope<R> current = scopeStore.current();
+        if ((propagation == Propagation.JOIN || propagation == Propagation.REQUIRED)
+                && current != null && Objects.equals(current.currentDiscriminator(), discriminator)) {
+            ResourceHolder<R> top = current.peekCurrent();
+            if (top != null && top.isOwnedByCurrentThread() && (!joinByArgs || Objects.equals(args, top.args))) {
+                return reenter(discriminator, current, top, lazy, fx, consumer);
+            }
+        }
 
         ResourceHolder<R> resource = null;
         boolean attemptedClose = false;
 
-        Deque<ResourceHolder<R>> currentDeque = getCurrentDeque(discriminator);
-
         //store the current discriminator
-        Deque<Object> currentDiscriminatorStack = discriminatorStack.get();
-        currentDiscriminatorStack.push(discriminator);
+        Scope<R> scope = scopeStore.enter(current, discriminator);
 
         try {
-            resource = getResource(discriminator, propagation, currentDeque, args);
+            resource = getResource(discriminator, propagation, scope, args, lazy);
+
+            if (!resource.isOwnedByCurrentThread()) {
+                //joined from a forked thread, the thread that created it is responsible for closing it
+                return scopeStore.call(scope, discriminator, null, fx, consumer, lazy ? null : resource.getResource());
+            }
+
             LOG.trace("-------!!! Providing resource..{} Calls:[{}]  !!!-------", resourceFactory, resource.count);
 
-            V result = fx.apply(resource.incrementAndGet());
+            ResourceHolder<R> created = resource.count == 0 ? resource : null;
+            resource.increment();
+            //lazy functions get the holder as a handle, do not create the resource yet
+            R r = lazy ? null : resource.getResource();
+            if (listener != null && created == null) {
+                listener.onJoin(discriminator, resource.count);
+            }
+            V result = scopeStore.call(scope, discriminator, created, fx, consumer, r);
             attemptedClose = true;
-            closeResourceExplosively(discriminator, resource, currentDeque);
+            closeResourceExplosively(discriminator, resource, scope);
 
             return result;
         } catch (Throwable usageOrCloseExcption) {//NOSONAR
 
-            if (!attemptedClose) {
+            CloseFailurePolicy policy = failurePolicy;
+            if (!attemptedClose && resource != null && resource.isOwnedByCurrentThread()) {
                 //if did not attempt close then this was an error of resource usage.
                 //hence close the resource
-                if (resource != null && resource.isGoingToCompleteAfterClose()) {
-                    resourceFactory.onException(discriminator, resource.getResource());
+                if (policy != null && policy.isAggregate()) {
+                    cleanUpAfterFailure(discriminator, resource, scope, usageOrCloseExcption, policy);
+                    ExceptionUtil.sneakyThrow(usageOrCloseExcption);
+                }
+                if (resource.isGoingToCompleteAfterClose()) {
+                    if (resource.isShared()) {
+                        //the last thread using the resource will call onException
+                        resource.markFailed();
+                    } else {
+                        notifyException(discriminator, resource);
+                    }
                 }
 
                 try {
-                    closeResourceExplosively(discriminator, resource, currentDeque);
+                    closeResourceExplosively(discriminator, resource, scope);
                 } catch (Throwable suppressed) {//NOSONAR
                     usageOrCloseExcption.addSuppressed(suppressed);
                 }
@@ -93,18 +490,48 @@ public class JBoomerang<R> {
             ExceptionUtil.sneakyThrow(usageOrCloseExcption);
         } finally {
             //clear the discriminator
-            currentDiscriminatorStack.poll();
-            mayBeClearThreadLocal(currentDiscriminatorStack);
+            scopeStore.exit(scope);
         }
         return null;
     }
 
-    private <V> V handleNonePropagation(JBoomerangFunction<R, V> fx) {
-        if (getCurrentResource().isPresent())
+    /**
+     * Notifies and closes the resource of a failed scope, collecting what fails on the way into one suppressed
+     * exception.
+     */
+    private void cleanUpAfterFailure(Object discriminator, ResourceHolder<R> resource, Scope<R> scope, Throwable error, CloseFailurePolicy policy) {
+        List<Throwable> failures = null;
+        if (resource.isGoingToCompleteAfterClose()) {
+            if (resource.isShared()) {
+                resource.markFailed();
+            } else {
+                try {
+                    notifyException(discriminator, resource);
+                } catch (Throwable x) {//NOSONAR
+                    failures = new ArrayList<>(2);
+                    failures.add(x);
+                }
+            }
+        }
+        try {
+            closeResourceExplosively(discriminator, resource, scope);
+        } catch (Throwable x) {//NOSONAR
+            if (failures == null) {
+                failures = new ArrayList<>(1);
+            }
+            failures.add(x instanceof BoomerangCloseException && x.getCause() != null ? x.getCause() : x);
+        }
+        if (failures != null) {
+            error.addSuppressed(policy.cleanupFailed(failures, resourceFactory));
+        }
+    }
+
+    private <V> V handleNonePropagation(JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) {
+        if (isActive())
             throw new IllegalStateException("cannot executed function with an open resource[" + resourceFactory + "]");
         else {
             try {
-                return fx.apply(null);
+                return ScopeStore.apply(fx, consumer, null);
             } catch (Exception e) {
                 ExceptionUtil.sneakyThrow(e);
                 throw new UnsupportedOperationException("should never reach here");
@@ -113,95 +540,399 @@ public class JBoomerang<R> {
     }
 
 
-    private void mayBeClearThreadLocal(Deque<Object> currentDiscriminatorStack) {
-        if (currentDiscriminatorStack.isEmpty()) {
-            discriminatorStack.remove();
-            resourceStack.remove();
+    /**
+     * Joins the resource of the current discriminator again. The scope that opened it is still running so the count
+     * cannot reach zero here and there is nothing to look up, close or notify on failure. The discriminator is still
+     * entered, so that the scope depth seen by nested calls and flight recorder events is the same as for any join.
+     */
+    private <V> V reenter(Object discriminator, Scope<R> current, ResourceHolder<R> resource, boolean lazy, JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) {
+        Scope<R> scope = scopeStore.reenter(current);
+        resource.increment();
+        try {
+            if (listener != null) {
+                listener.onJoin(discriminator, resource.count);
+            }
+            return scopeStore.call(scope, discriminator, null, fx, consumer, lazy ? null : resource.getResource());
+        } catch (Exception x) {
+            ExceptionUtil.sneakyThrow(x);
+            throw new UnsupportedOperationException("should never reach here");
+        } finally {
+            resource.decrement();
+            scopeStore.exit(scope);
         }
     }
 
+    private <V> V executeSuspended(Object discriminator, JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) {
+        Scope<R> scope = scopeStore.enter(discriminator);
+        try {
+            ResourceHolder<R> current = scope.peek(discriminator);
+            //only the thread that owns an unshared resource may hand it back while it is suspended
+            boolean notify = current != null && current.isAcquired() && current.isOwnedByCurrentThread() && !current.isShared();
+            if (notify) {
+                LOG.trace("--->Suspending resource..{}", resourceFactory);
+                resourceFactory.onSuspend(discriminator, current.getResource());
+            }
+            V result;
+            try {
+                result = scopeStore.callSuspended(scope, discriminator, fx, consumer);
+            } catch (Throwable x) {//NOSONAR
+                if (notify) {
+                    try {
+                        resourceFactory.onResume(discriminator, current.getResource());
+                    } catch (Throwable suppressed) {//NOSONAR
+                        x.addSuppressed(suppressed);
+                    }
+                }
+                throw x;
+            }
+            if (notify) {
+                LOG.trace("--->Resuming resource..{}", resourceFactory);
+                resourceFactory.onResume(discriminator, current.getResource());
+            }
+            return result;
+        } catch (Throwable x) {//NOSONAR
+            ExceptionUtil.sneakyThrow(x);
+            throw new UnsupportedOperationException("should never reach here");
+        } finally {
+            scopeStore.exit(scope);
+        }
+    }
 
-    private void closeResourceExplosively(Object discriminator, ResourceHolder<R> resource, Deque<ResourceHolder<R>> currentDeque) {
+    private void closeResourceExplosively(Object discriminator, ResourceHolder<R> resource, Scope<R> scope) {
         if (resource != null) {
             try {
                 resource.decrement();
-                if (resource.isComplete()) {
+                if (resource.isComplete() && resource.releaseOwner()) {
                     LOG.trace("--->Closing resource..{}: Calls[{}]", resourceFactory, resource.count);
-                    resourceFactory.close(discriminator, resource.getResource());
+                    closeHolder(discriminator, resource);
                 }
-            } catch (BoomerangCloseException x) {
-                throw x;
-            } catch (Exception x) {
-                throw new BoomerangCloseException("error closing resource", x, resourceFactory);
             } finally {
                 if (resource.isComplete()) {
-                    currentDeque.poll();
+                    scopeStore.release(scope, discriminator, resource);
                 }
             }
         }
     }
 
-    private ResourceHolder<R> getResource(Object discriminator, Propagation propagation, Deque<ResourceHolder<R>> currentDeque, Args args) {
+    /**
+     * Releases a lease taken with {@link ResourceHolder#lease()} and closes the resource if nothing else uses it.
+     */
+    void releaseLease(Object discriminator, ResourceHolder<R> resource) {
+        if (resource.releaseLease()) {
+            LOG.trace("--->Closing leased resource..{}", resourceFactory);
+            closeHolder(discriminator, resource);
+        }
+    }
 
+    private void closeHolder(Object discriminator, ResourceHolder<R> resource) {
+        if (!resource.isAcquired()) {
+            LOG.trace("--->Lazy resource was never created..{}", resourceFactory);
+            return;
+        }
+        if (registry != null && resource.parent == null) {
+            registry.closed(discriminator, resource);
+        }
+        if (watchdog != null) {
+            watchdog.closed(resource);
+        }
+        //the holder may be recycled as soon as this returns, so take what the close needs
+        R r = resource.getResource();
+        R parent = resource.parent == null ? null : resource.parent.getResource();
+        boolean failed = resource.isFailed();
+        long createdAt = resource.createdAt;
+        AdmissionControl admitted = resource.admission;
+        resource.admission = null;
+        BackgroundCloser background = closer;
+        if (background != null && parent == null && resourceFactory.isCloseDeferrable(discriminator)) {
+            LOG.trace("--->Deferring close..{}", resourceFactory);
+            background.execute(discriminator, () -> close(discriminator, r, null, failed, createdAt, admitted));
+            return;
+        }
+        close(discriminator, r, parent, failed, createdAt, admitted);
+    }
+
+    private void close(Object discriminator, R resource, R parent, boolean failed, long createdAt, AdmissionControl admitted) {
+        long start = listener == null ? 0 : System.nanoTime();
+        Object event = ResourceEvents.EVENTS.beginClose();
+        try {
+            if (failed) {
+                notifyException(discriminator, resource, parent);
+            }
+            if (parent != null) {
+                resourceFactory.releaseChild(discriminator, resource, parent);
+            } else if (batcher != null) {
+                batcher.close(discriminator, resource);
+            } else {
+                resourceFactory.close(discriminator, resource);
+            }
+        } catch (BoomerangCloseException x) {
+            notifyCloseFailure(discriminator, x);
+            throw x;
+        } catch (Exception x) {
+            notifyCloseFailure(discriminator, x);
+            CloseFailurePolicy policy = failurePolicy;
+            throw policy == null ? new BoomerangCloseException("error closing resource", x, resourceFactory) : policy.closeFailed(x, resourceFactory);
+        } finally {
+            if (admitted != null) {
+                admitted.release(discriminator);
+            }
+            if (event != null) {
+                ResourceEvents.EVENTS.commitClose(event, discriminator, scopeStore.current());
+            }
+        }
+        if (listener != null) {
+            long end = System.nanoTime();
+            listener.onClose(discriminator, end - createdAt, end - start);
+        }
+    }
+
+    private void notifyException(Object discriminator, ResourceHolder<R> resource) {
+        if (!resource.isAcquired()) {
+            return;
+        }
+        notifyException(discriminator, resource.getResource(), resource.parent == null ? null : resource.parent.getResource());
+    }
+
+    private void notifyException(Object discriminator, R resource, R parent) {
+        if (listener != null) {
+            listener.onException(discriminator);
+        }
+        if (parent == null) {
+            resourceFactory.onException(discriminator, resource);
+        } else {
+            resourceFactory.onChildException(discriminator, resource, parent);
+        }
+    }
+
+    private void notifyCloseFailure(Object discriminator, Exception x) {
+        if (listener != null) {
+            listener.onCloseFailure(discriminator, x);
+        }
+    }
+
+    /**
+     * @return the holder the function of the current call runs with, the same lookup {@link #getResource} joins
+     * through, so that with joinByArgs a deeper holder with equal args is found rather than the innermost one
+     */
+    private ResourceHolder<R> joinedHolder(Object discriminator, Args args) {
+        Scope<R> scope = scopeStore.current();
+        return joinByArgs ? scope.peek(discriminator, args) : scope.peek(discriminator);
+    }
+
+    private ResourceHolder<R> getResource(Object discriminator, Propagation propagation, Scope<R> scope, Args args, boolean lazy) {
+
+        ResourceHolder<R> current = joinByArgs ? scope.peek(discriminator, args) : scope.peek(discriminator);
 
         switch (propagation) {
             case REQUIRED:
-                if (currentDeque.isEmpty())
+                if (current == null)
                     throw new IllegalStateException("a resource is required ot be available at this time" +
                             " however non is available");
                 //fall through like a join
             case JOIN:
-                if (currentDeque.isEmpty())
-                    return createResource(discriminator, currentDeque, args);
+                if (current == null)
+                    return lazy ? createLazyResource(discriminator, propagation, scope, args) : createResource(discriminator, propagation, scope, args);
                 else
-                    return currentDeque.peek();
+                    return current;
             case WITH_NEW:
-                return createResource(discriminator, currentDeque, args);
+                return lazy ? createLazyResource(discriminator, propagation, scope, args) : createResource(discriminator, propagation, scope, args);
+            case NESTED:
+                if (current == null)
+                    return lazy ? createLazyResource(discriminator, propagation, scope, args) : createResource(discriminator, propagation, scope, args);
+                else
+                    return createChildResource(discriminator, current, scope);
             default:
                 throw new UnsupportedOperationException("Propagation not supported: " + propagation);
         }
     }
 
 
-    private Deque<ResourceHolder<R>> getCurrentDeque(Object discriminator) {
-        Map<Object, Deque<ResourceHolder<R>>> resourceHoldersMap = resourceStack.get();
-        return resourceHoldersMap.computeIfAbsent(discriminator, k -> new ArrayDeque<>());
+    private ResourceHolder<R> createResource(Object discriminator, Propagation propagation, Scope<R> scope, Args args) {
+        AdmissionControl admitted = admit(discriminator);
+        long start = listener == null ? 0 : System.nanoTime();
+        Object event = ResourceEvents.EVENTS.beginCreate();
+        ResourceHolder<R> holder = scope.newHolder(newResource(discriminator, args, admitted));
+        holder.admission = admitted;
+        holder.args = args;
+        opened(discriminator, propagation, holder, start, event);
+        return holder;
+    }
+
+    private ResourceHolder<R> createChildResource(Object discriminator, ResourceHolder<R> parent, Scope<R> scope) {
+        LOG.trace("-------->Creating child resource: {}", resourceFactory);
+        long start = listener == null ? 0 : System.nanoTime();
+        R child = resourceFactory.createChild(discriminator, parent.getResource());
+        if (child == null) {
+            throw new NullPointerException("Unexpected null returned for child resource");
+        }
+        ResourceHolder<R> holder = scope.newHolder(child);
+        holder.parent = parent;
+        holder.args = parent.args;
+        if (listener != null) {
+            holder.createdAt = System.nanoTime();
+            notifyCreate(discriminator, Propagation.NESTED, holder.createdAt - start);
+        }
+        return holder;
+    }
+
+    private ResourceHolder<R> createLazyResource(Object discriminator, Propagation propagation, Scope<R> scope, Args args) {
+        ResourceHolder<R> holder = scope.newHolder(null);
+        holder.args = args;
+        holder.defer(() -> {
+            AdmissionControl admitted = admit(discriminator);
+            long start = listener == null ? 0 : System.nanoTime();
+            Object event = ResourceEvents.EVENTS.beginCreate();
+            R resource = newResource(discriminator, args, admitted);
+            holder.admission = admitted;
+            opened(discriminator, propagation, holder, start, event);
+            return resource;
+        });
+        return holder;
     }
 
+    private AdmissionControl admit(Object discriminator) {
+        AdmissionControl control = this.admission;
+        if (control == null) {
+            return null;
+        }
+        long start = listener == null ? 0 : System.nanoTime();
+        boolean admitted;
+        try {
+            admitted = control.tryAcquire(discriminator, control.getMaxWaitNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting to open a resource for [" + discriminator + "]", x);
+        }
+        if (listener != null) {
+            listener.onAdmissionWait(discriminator, System.nanoTime() - start, admitted);
+        }
+        if (!admitted) {
+            throw new IllegalStateException("timed out waiting to open a resource for [" + discriminator + "]");
+        }
+        return control;
+    }
 
-    private ResourceHolder<R> createResource(Object discriminator, Deque<ResourceHolder<R>> currentDeque, Args args) {
+    private R newResource(Object discriminator, Args args, AdmissionControl admitted) {
         LOG.trace("-------->Creating resource: {}", resourceFactory);
-        R resource = resourceFactory.create(discriminator, args);
-        if (resource == null) {
-            throw new NullPointerException("Unexpected null returned for resource");
+        boolean created = false;
+        try {
+            CircuitBreaker cb = breaker;
+            R resource = cb == null ? resourceFactory.create(discriminator, args) : cb.create(discriminator, args, resourceFactory);
+            if (resource == null) {
+                throw new NullPointerException("Unexpected null returned for resource");
+            }
+            created = true;
+            return resource;
+        } finally {
+            if (!created && admitted != null) {
+                admitted.release(discriminator);
+            }
         }
-        ResourceHolder<R> e = new ResourceHolder<>(resource);
+    }
 
-        currentDeque.push(e);
-        return e;
+    private void opened(Object discriminator, Propagation propagation, ResourceHolder<R> holder, long start, Object event) {
+        if (event != null) {
+            ResourceEvents.EVENTS.commitCreate(event, discriminator, propagation, scopeStore.current());
+        }
+        if (listener != null || registry != null) {
+            holder.createdAt = System.nanoTime();
+        }
+        if (registry != null) {
+            registry.opened(discriminator, holder);
+        }
+        if (watchdog != null) {
+            watchdog.opened(discriminator, holder);
+        }
+        if (listener != null) {
+            notifyCreate(discriminator, propagation, holder.createdAt - start);
+        }
+    }
+
+    /**
+     * The resource is open and holds its permit by now, but is only closed once the scope has the holder, so a failing
+     * listener is logged rather than thrown.
+     */
+    private void notifyCreate(Object discriminator, Propagation propagation, long createNanos) {
+        try {
+            listener.onCreate(discriminator, propagation, createNanos);
+        } catch (RuntimeException x) {
+            LOG.warn("listener failed on create of a resource for [{}]", discriminator, x);
+        }
     }
 
     public int countDiscriminators(){
-        return resourceStack.get().size();
+        Scope<R> scope = scopeStore.current();
+        return scope == null ? 0 : scope.countDiscriminators();
     }
 
     public int countOpenResources() {
-        Optional<Object> o = currentDiscriminator();
-        return o.map(this::countOpenResources).orElse(0);
+        Scope<R> scope = scopeStore.current();
+        Object discriminator = scope == null ? null : scope.currentDiscriminator();
+        return discriminator == null ? 0 : scope.depth(discriminator);
     }
 
     public int countOpenResources(Object discriminator) {
-        return getCurrentDeque(discriminator).size();
+        return depth(discriminator);
+    }
+
+    /*
+     * The queries below never allocate, never change the thread's scope state and never acquire a lazy resource, so
+     * they are cheap enough to call on every method invocation.
+     */
+
+    /**
+     * @return how many scopes of the discriminator have a resource open on this thread, the same as
+     * {@link #countOpenResources(Object)}
+     */
+    public int depth(Object discriminator) {
+        Scope<R> scope = scopeStore.current();
+        return scope == null ? 0 : scope.depth(discriminator);
+    }
+
+    /**
+     * @return whether the current discriminator has a resource open on this thread, acquired or not
+     */
+    public boolean isActive() {
+        Scope<R> scope = scopeStore.current();
+        return scope != null && scope.peekCurrent() != null;
+    }
+
+    public boolean isActive(Object discriminator) {
+        return depth(discriminator) > 0;
     }
 
+    /**
+     * @return the resource of the current discriminator, or null when there is none or it is a lazy resource that has
+     * not been acquired yet
+     */
+    public R getCurrentResourceOrNull() {
+        Scope<R> scope = scopeStore.current();
+        return scope == null ? null : acquiredOrNull(scope.peekCurrent());
+    }
+
+    public R getCurrentResourceOrNull(Object discriminator) {
+        Scope<R> scope = scopeStore.current();
+        return scope == null ? null : acquiredOrNull(scope.peek(discriminator));
+    }
+
+    private static <R> R acquiredOrNull(ResourceHolder<R> holder) {
+        return holder == null || !holder.isAcquired() ? null : holder.getResource();
+    }
+
+    /**
+     * @return the resource of the current discriminator, a lazy resource is acquired
+     */
     public Optional<R> getCurrentResource() {
-        return currentDiscriminator().flatMap(this::getCurrentResource);
+        Scope<R> scope = scopeStore.current();
+        ResourceHolder<R> peek = scope == null ? null : scope.peekCurrent();
+        return peek == null ? Optional.empty() : Optional.ofNullable(peek.getResource());
     }
 
     public Optional<R> getCurrentResource(Object discriminator) {
-        ResourceHolder<R> peek = getCurrentDeque(discriminator).peek();
+        Scope<R> scope = scopeStore.current();
+        ResourceHolder<R> peek = scope == null ? null : scope.peek(discriminator);
         if (peek != null)
-            return Optional.ofNullable(peek.resource);
+            return Optional.ofNullable(peek.getResource());
         return Optional.empty();
     }
 
@@ -210,17 +941,24 @@ public class JBoomerang<R> {
     }
 
     public Optional<Object> currentDiscriminator() {
-        Object peek = discriminatorStack.get().peek();
-        return Optional.ofNullable(peek);
+        Scope<R> scope = scopeStore.current();
+        return Optional.ofNullable(scope == null ? null : scope.currentDiscriminator());
     }
 
     public Object currentDiscriminatorOrCommon() {
-        return currentDiscriminator().orElse(COMMON_DISCRIMINATOR);
+        Scope<R> scope = scopeStore.current();
+        Object discriminator = scope == null ? null : scope.currentDiscriminator();
+        return discriminator == null ? COMMON_DISCRIMINATOR : discriminator;
     }
 
 
     int getDiscriminatorSize() {
-        return discriminatorStack.get().size();
+        Scope<R> scope = scopeStore.current();
+        return scope == null ? 0 : scope.discriminatorDepth();
+    }
+
+    ScopeStore<R> getScopeStore() {
+        return scopeStore;
     }
 
     public interface ResourceFactory<R> {
@@ -230,11 +968,53 @@ public class JBoomerang<R> {
         void close(Object discriminator, R resource);
 
         void onException(Object discriminator, R resource);
+
+        /**
+         * Creates a cheap child of the parent for {@link Propagation#NESTED}, e.g. a savepoint on the parent's
+         * connection. The child is closed with {@link #releaseChild(Object, Object, Object)} instead of close.
+         */
+        default R createChild(Object discriminator, R parent) {
+            throw new UnsupportedOperationException("NESTED propagation is not supported by " + this);
+        }
+
+        default void releaseChild(Object discriminator, R child, R parent) {
+        }
+
+        /**
+         * Called instead of {@link #onException(Object, Object)} when a nested scope fails, e.g. to roll back to the
+         * savepoint. The parent is not affected unless the failure propagates to its scope.
+         */
+        default void onChildException(Object discriminator, R child, R parent) {
+        }
+
+        /**
+         * Called before a {@link Propagation#SUSPEND} scope runs, e.g. to give the underlying connection back to a
+         * pool while slow work runs. Not called for resources shared with other threads.
+         */
+        default void onSuspend(Object discriminator, R resource) {
+        }
+
+        /**
+         * Called after the suspended scope completes, e.g. to re-acquire what was handed back in onSuspend.
+         */
+        default void onResume(Object discriminator, R resource) {
+        }
+
+        /**
+         * Whether close may run on a {@link BackgroundCloser} after the scope has returned. Only return true when
+         * nothing after the scope depends on the close having happened, e.g. not for a commit.
+         */
+        default boolean isCloseDeferrable(Object discriminator) {
+            return false;
+        }
     }
 
+    /**
+     * Arguments for creating a resource. Two args are equal when their parameters are, compared deeply.
+     */
     public static class Args {
-        private static Args none = new Args(new Object[]{});
-        private Object[] params;
+        private static final Args none = new Args(new Object[]{});
+        private final Object[] params;
 
         Args(Object[] params) {
             this.params = params;
@@ -251,33 +1031,149 @@ public class JBoomerang<R> {
         public <T> T get(int i) {
             return (T) params[i];
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            return o instanceof Args && Arrays.deepEquals(params, ((Args) o).params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(params);
+        }
+
+        @Override
+        public String toString() {
+            return "Args" + Arrays.deepToString(params);
+        }
     }
 
 
-    static class ResourceHolder<T> {
+    static class ResourceHolder<T> implements ResourceHandle<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<ResourceHolder> REFS = AtomicIntegerFieldUpdater.newUpdater(ResourceHolder.class, "refs");
 
         private T resource;
         private int count = 0;
+        private Thread owner;
+        //set by the owner thread the first time the holder is leased to another thread
+        private boolean shared = false;
+        //the owner plus the number of outstanding leases, only maintained once shared
+        private volatile int refs = 0;
+        private volatile boolean failed = false;
+        //creates the resource on first access, cleared once created
+        private volatile Supplier<T> creator;
+        //only set when a listener or registry is registered
+        long createdAt;
+        //set when a permit was taken to create the resource
+        AdmissionControl admission;
+        //the resource this one was derived from with NESTED propagation
+        ResourceHolder<T> parent;
+        //what the resource was created with, matched when joining by args
+        Args args;
 
 
         ResourceHolder(T resource) {
+            reset(resource);
+        }
+
+        void reset(T resource) {
             this.resource = resource;
+            this.count = 0;
+            this.owner = resource == null ? null : Thread.currentThread();
+            this.shared = false;
+            this.refs = 0;
+            this.failed = false;
+            this.creator = null;
+            this.admission = null;
+            this.parent = null;
+            this.args = null;
         }
 
+        void defer(Supplier<T> creator) {
+            this.owner = Thread.currentThread();
+            this.creator = creator;
+        }
 
-        private void increment() {
-            count++;
+        boolean isOwnedByCurrentThread() {
+            return owner == Thread.currentThread();
         }
 
-        T incrementAndGet() {
-            increment();
-            return resource;
+        /**
+         * Keeps the resource open until {@link #releaseLease()} is called, even if the owner completes first.
+         * Must be called by the owner or by a thread that already holds a lease.
+         */
+        void lease() {
+            if (!shared) {
+                if (!isOwnedByCurrentThread()) {
+                    throw new IllegalStateException("a resource joined from a forked scope cannot be passed to another thread");
+                }
+                shared = true;
+                REFS.incrementAndGet(this);
+            }
+            REFS.incrementAndGet(this);
+        }
+
+        /**
+         * @return true if this was the last reference and the resource should now be closed
+         */
+        boolean releaseLease() {
+            return REFS.decrementAndGet(this) == 0;
+        }
+
+        /**
+         * Called by the owner when its count reaches zero.
+         *
+         * @return true if the resource should now be closed
+         */
+        private boolean releaseOwner() {
+            return !shared || REFS.decrementAndGet(this) == 0;
+        }
+
+        boolean isShared() {
+            return shared;
+        }
+
+        void markFailed() {
+            failed = true;
+        }
+
+        boolean isFailed() {
+            return failed;
+        }
+
+
+        void increment() {
+            count++;
         }
 
         public T getResource() {
+            return creator == null ? resource : acquire();
+        }
+
+        private synchronized T acquire() {
+            Supplier<T> c = creator;
+            if (c != null) {
+                resource = c.get();
+                creator = null;
+            }
             return resource;
         }
 
+        @Override
+        public T get() {
+            return getResource();
+        }
+
+        @Override
+        public boolean isAcquired() {
+            return creator == null;
+        }
+
         void decrement() {
             count--;
         }
@@ -0,0 +1,12 @@
+package com.github.kayr.jboomerang;
+
+import java.util.List;
+
+/**
+ * Processes one chunk of a {@link JBoomerang#withResourceParallel(java.util.Collection, ParallelOptions, JBoomerangChunkFunction)}
+ * call with the resource of the worker running it.
+ */
+@FunctionalInterface
+public interface JBoomerangChunkFunction<R, T, V> {
+    V apply(R resource, List<T> chunk) throws Exception;//NOSONAR
+}
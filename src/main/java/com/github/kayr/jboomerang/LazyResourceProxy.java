@@ -0,0 +1,45 @@
+package com.github.kayr.jboomerang;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+final class LazyResourceProxy<R> implements InvocationHandler {
+
+    private final ResourceHandle<R> handle;
+
+    private LazyResourceProxy(ResourceHandle<R> handle) {
+        this.handle = handle;
+    }
+
+    static <R> R create(Class<R> resourceInterface, ResourceHandle<R> handle) {
+        if (!resourceInterface.isInterface()) {
+            throw new IllegalArgumentException("lazy proxies need an interface type: " + resourceInterface.getName());
+        }
+        Object proxy = Proxy.newProxyInstance(resourceInterface.getClassLoader(), new Class<?>[]{resourceInterface}, new LazyResourceProxy<>(handle));
+        return resourceInterface.cast(proxy);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            //do not create the resource just to log or compare the proxy
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return handle.isAcquired() ? String.valueOf(handle.get()) : "LazyResource[not acquired]";
+                default:
+                    break;
+            }
+        }
+        try {
+            return method.invoke(handle.get(), args);
+        } catch (InvocationTargetException x) {
+            throw x.getCause();
+        }
+    }
+}
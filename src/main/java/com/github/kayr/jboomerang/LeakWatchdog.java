@@ -0,0 +1,246 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Finds resources that stay open far longer than expected, e.g. because the function holding them blocks forever.
+ * Register it with {@link JBoomerang#watchForLeaks(LeakWatchdog)}.
+ * <p>
+ * Only a sample of the created resources is watched, and only those pay for capturing the stack that created them.
+ * Resources held longer than the threshold can be queried with {@link #findLongHeld()} and are passed once to the
+ * callback by the periodic check.
+ */
+public class LeakWatchdog implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LeakWatchdog.class);
+
+    private final double                                    sampleRate;
+    private final long                                      thresholdNanos;
+    private final Consumer<LongHeldResource>                callback;
+    private final ScheduledExecutorService                  checker;
+    private final Map<JBoomerang.ResourceHolder<?>, Sample> samples = new ConcurrentHashMap<>();
+
+    private LeakWatchdog(Builder builder) {
+        this.sampleRate = builder.sampleRate;
+        this.thresholdNanos = builder.threshold.toNanos();
+        this.callback = builder.callback;
+        if (builder.checkInterval.isZero()) {
+            this.checker = null;
+        } else {
+            this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jboomerang-leak-watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = builder.checkInterval.toNanos();
+            checker.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    void opened(Object discriminator, JBoomerang.ResourceHolder<?> holder) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        samples.put(holder, new Sample(discriminator, Thread.currentThread(), new Throwable("resource opened here")));
+    }
+
+    void closed(JBoomerang.ResourceHolder<?> holder) {
+        if (!samples.isEmpty()) {
+            samples.remove(holder);
+        }
+    }
+
+    /**
+     * @return the watched resources open longer than the threshold, the longest held first
+     */
+    public List<LongHeldResource> findLongHeld() {
+        long now = System.nanoTime();
+        List<LongHeldResource> result = new ArrayList<>();
+        for (Sample sample : samples.values()) {
+            if (now - sample.openedAt > thresholdNanos) {
+                result.add(sample.report(now));
+            }
+        }
+        result.sort(Comparator.comparing(LongHeldResource::getHeldFor).reversed());
+        return result;
+    }
+
+    /**
+     * Passes resources that crossed the threshold since the last check to the callback. Called periodically when a
+     * check interval is configured.
+     */
+    public void check() {
+        long now = System.nanoTime();
+        for (Sample sample : samples.values()) {
+            if (!sample.reported && now - sample.openedAt > thresholdNanos) {
+                sample.reported = true;
+                try {
+                    callback.accept(sample.report(now));
+                } catch (RuntimeException x) {
+                    LOG.warn("leak watchdog callback failed", x);
+                }
+            }
+        }
+    }
+
+    public int countWatched() {
+        return samples.size();
+    }
+
+    /**
+     * Stops the periodic check.
+     */
+    @Override
+    public void close() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    private static class Sample {
+        private final Object                discriminator;
+        private final WeakReference<Thread> owner;
+        private final String                ownerName;
+        private final long                  openedAt = System.nanoTime();
+        private final long                  openedAtMillis = System.currentTimeMillis();
+        private final Throwable             openedBy;
+        private volatile boolean            reported;
+
+        Sample(Object discriminator, Thread owner, Throwable openedBy) {
+            this.discriminator = discriminator;
+            this.owner = new WeakReference<>(owner);
+            this.ownerName = owner.getName();
+            this.openedBy = openedBy;
+        }
+
+        LongHeldResource report(long now) {
+            return new LongHeldResource(discriminator, owner.get(), ownerName, openedAtMillis, now - openedAt, openedBy);
+        }
+    }
+
+    /**
+     * A watched resource that has been open longer than the threshold.
+     */
+    public static class LongHeldResource {
+        private final Object    discriminator;
+        private final Thread    owner;
+        private final String    ownerName;
+        private final long      openedAtMillis;
+        private final long      heldForNanos;
+        private final Throwable openedBy;
+
+        LongHeldResource(Object discriminator, Thread owner, String ownerName, long openedAtMillis, long heldForNanos, Throwable openedBy) {
+            this.discriminator = discriminator;
+            this.owner = owner;
+            this.ownerName = ownerName;
+            this.openedAtMillis = openedAtMillis;
+            this.heldForNanos = heldForNanos;
+            this.openedBy = openedBy;
+        }
+
+        public Object getDiscriminator() {
+            return discriminator;
+        }
+
+        public String getOwnerName() {
+            return ownerName;
+        }
+
+        public long getOpenedAtMillis() {
+            return openedAtMillis;
+        }
+
+        public Duration getHeldFor() {
+            return Duration.ofNanos(heldForNanos);
+        }
+
+        /**
+         * @return where the resource was created
+         */
+        public StackTraceElement[] getOpenedAt() {
+            return openedBy.getStackTrace();
+        }
+
+        /**
+         * @return where the thread that opened the resource is now, empty if it has terminated. Useful to see where
+         * a scope is stuck.
+         */
+        public StackTraceElement[] getOwnerStackTrace() {
+            return owner == null || !owner.isAlive() ? new StackTraceElement[0] : owner.getStackTrace();
+        }
+
+        @Override
+        public String toString() {
+            return "LongHeldResource{" +
+                    "discriminator=" + discriminator +
+                    ", owner=" + ownerName +
+                    ", heldFor=" + getHeldFor() +
+                    '}';
+        }
+    }
+
+    public static class Builder {
+        private double                     sampleRate    = 0.01;
+        private Duration                   threshold     = Duration.ofMinutes(1);
+        private Duration                   checkInterval = Duration.ofSeconds(30);
+        private Consumer<LongHeldResource> callback      = r -> LOG.warn("resource held for {} by [{}], opened at",
+                                                                         r.getHeldFor(), r.getOwnerName(), r.openedBy);
+
+        Builder() {
+        }
+
+        /**
+         * The fraction of created resources to watch, between 0 and 1. Defaults to 0.01.
+         */
+        public Builder sampleRate(double sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        public Builder threshold(Duration threshold) {
+            this.threshold = threshold;
+            return this;
+        }
+
+        /**
+         * How often {@link #check()} runs. Zero disables the periodic check, then only the query API is available.
+         */
+        public Builder checkInterval(Duration checkInterval) {
+            this.checkInterval = checkInterval;
+            return this;
+        }
+
+        /**
+         * Receives each long held resource once, by default it is logged with the stack that opened it.
+         */
+        public Builder onLongHeld(Consumer<LongHeldResource> callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        public LeakWatchdog build() {
+            if (sampleRate < 0 || sampleRate > 1) {
+                throw new IllegalArgumentException("sample rate should be between 0 and 1");
+            }
+            return new LeakWatchdog(this);
+        }
+    }
+}
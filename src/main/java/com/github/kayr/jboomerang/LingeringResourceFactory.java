@@ -0,0 +1,266 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link JBoomerang.ResourceFactory} that keeps a closed resource parked on the thread that closed it, so that the
+ * next outermost scope on the same thread and discriminator reuses it instead of creating a new one. A resource is
+ * closed for real once it has been idle for the max idle time or has served max uses scopes.
+ * <p>
+ * Each thread parks at most one resource per discriminator and only the owning thread and the sweeper ever touch a
+ * parked resource, so there is no pool to coordinate. Expired resources are closed by a background sweeper; call
+ * {@link #close()} to stop it and close everything that is parked.
+ * <p>
+ * The {@link JBoomerang.Args} passed to create are only used when a new resource has to be created, a parked resource
+ * is reused whatever the args. Use a {@link CachingResourceFactory} for resources that differ by args, e.g. per tenant.
+ */
+public class LingeringResourceFactory<R> implements JBoomerang.ResourceFactory<R>, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LingeringResourceFactory.class);
+
+    private final JBoomerang.ResourceFactory<R> delegate;
+    private final long maxIdleNanos;
+    private final int maxUses;
+    private final ScheduledExecutorService sweeper;
+
+    private final ThreadLocal<Map<Object, Slot<R>>> slots = new ThreadLocal<>();
+    private final Set<Slot<R>> allSlots = ConcurrentHashMap.newKeySet();
+    private final Map<IdentityKey, Boolean> discarded = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private LingeringResourceFactory(Builder<R> builder) {
+        this.delegate = builder.delegate;
+        this.maxIdleNanos = builder.maxIdleTime.toNanos();
+        this.maxUses = builder.maxUses;
+        if (builder.sweepInterval.isZero()) {
+            this.sweeper = null;
+        } else {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jboomerang-linger-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = builder.sweepInterval.toNanos();
+            sweeper.scheduleWithFixedDelay(this::evictExpired, interval, interval, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public static <R> Builder<R> builder(JBoomerang.ResourceFactory<R> delegate) {
+        return new Builder<>(delegate);
+    }
+
+    @Override
+    public R create(Object discriminator, JBoomerang.Args args) {
+        Slot<R> slot = slot(discriminator);
+        Parked<R> parked = slot.parked.getAndSet(null);
+        if (parked != null) {
+            if (System.nanoTime() - parked.parkedAt <= maxIdleNanos) {
+                LOG.trace("-->Reusing lingering resource: {}", parked.resource);
+                slot.borrowed.add(parked);
+                return parked.resource;
+            }
+            destroy(discriminator, parked.resource);
+        }
+        return delegate.create(discriminator, args);
+    }
+
+    @Override
+    public void close(Object discriminator, R resource) {
+        Slot<R> slot = slot(discriminator);
+        Parked<R> parked = slot.returned(resource);
+        if (!discarded.isEmpty() && discarded.remove(new IdentityKey(resource)) != null) {
+            destroy(discriminator, resource);
+            return;
+        }
+        if (parked == null) {
+            //a new resource, or one borrowed on another thread
+            parked = new Parked<>(resource);
+        }
+        if (++parked.uses >= maxUses || closed) {
+            destroy(discriminator, resource);
+            return;
+        }
+        parked.parkedAt = System.nanoTime();
+        if (!slot.parked.compareAndSet(null, parked)) {
+            //a nested WITH_NEW resource is already parked
+            destroy(discriminator, resource);
+            return;
+        }
+        //checked after parking, either this or close() sees the resource
+        if (closed && slot.parked.compareAndSet(parked, null)) {
+            destroy(discriminator, resource);
+        }
+    }
+
+    @Override
+    public void onException(Object discriminator, R resource) {
+        delegate.onException(discriminator, resource);
+        discarded.put(new IdentityKey(resource), Boolean.TRUE);
+    }
+
+    /**
+     * Closes parked resources that have been idle for longer than the max idle time and those parked by threads that
+     * have died. Called periodically by the sweeper.
+     */
+    public void evictExpired() {
+        long now = System.nanoTime();
+        for (Slot<R> slot : allSlots) {
+            Parked<R> parked = slot.parked.get();
+            boolean dead = !slot.owner.isAlive();
+            if (parked != null && (dead || now - parked.parkedAt > maxIdleNanos) && slot.parked.compareAndSet(parked, null)) {
+                LOG.trace("-->Closing expired lingering resource: {}", parked.resource);
+                destroy(slot.discriminator, parked.resource);
+            }
+            if (dead && slot.parked.get() == null) {
+                allSlots.remove(slot);
+            }
+        }
+    }
+
+    public int countParked(Object discriminator) {
+        int count = 0;
+        for (Slot<R> slot : allSlots) {
+            if (Objects.equals(slot.discriminator, discriminator) && slot.parked.get() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops the sweeper and closes all parked resources. Resources in use are closed normally when their scope ends.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        for (Slot<R> slot : allSlots) {
+            Parked<R> parked = slot.parked.getAndSet(null);
+            if (parked != null) {
+                destroy(slot.discriminator, parked.resource);
+            }
+        }
+    }
+
+    private Slot<R> slot(Object discriminator) {
+        Map<Object, Slot<R>> threadSlots = slots.get();
+        if (threadSlots == null) {
+            threadSlots = new HashMap<>();
+            slots.set(threadSlots);
+        }
+        Slot<R> slot = threadSlots.get(discriminator);
+        if (slot == null) {
+            slot = new Slot<>(discriminator);
+            threadSlots.put(discriminator, slot);
+            allSlots.add(slot);
+        }
+        return slot;
+    }
+
+    private void destroy(Object discriminator, R resource) {
+        try {
+            delegate.close(discriminator, resource);
+        } catch (RuntimeException x) {
+            LOG.warn("failed to close lingering resource: {}", resource, x);
+        }
+    }
+
+    public static class Builder<R> {
+        private final JBoomerang.ResourceFactory<R> delegate;
+        private Duration maxIdleTime = Duration.ofSeconds(1);
+        private int maxUses = Integer.MAX_VALUE;
+        private Duration sweepInterval;
+
+        Builder(JBoomerang.ResourceFactory<R> delegate) {
+            this.delegate = delegate;
+        }
+
+        public Builder<R> maxIdleTime(Duration maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+            return this;
+        }
+
+        /**
+         * Number of outermost scopes a resource can serve before it is closed for real.
+         */
+        public Builder<R> maxUses(int maxUses) {
+            this.maxUses = maxUses;
+            return this;
+        }
+
+        /**
+         * How often the sweeper runs, defaults to the max idle time. Zero disables the sweeper, then
+         * {@link #evictExpired()} has to be called by hand.
+         */
+        public Builder<R> sweepInterval(Duration sweepInterval) {
+            this.sweepInterval = sweepInterval;
+            return this;
+        }
+
+        public LingeringResourceFactory<R> build() {
+            if (maxUses < 1) {
+                throw new IllegalArgumentException("max uses should be at least 1");
+            }
+            if (maxIdleTime.isNegative() || maxIdleTime.isZero()) {
+                throw new IllegalArgumentException("max idle time should be positive");
+            }
+            if (sweepInterval == null) {
+                sweepInterval = maxIdleTime;
+            }
+            return new LingeringResourceFactory<>(this);
+        }
+    }
+
+    private static class Slot<R> {
+        private final Object discriminator;
+        private final Thread owner = Thread.currentThread();
+        private final AtomicReference<Parked<R>> parked = new AtomicReference<>();
+        //resources reused by open scopes, innermost last, only touched by the owner thread
+        private final List<Parked<R>> borrowed = new ArrayList<>(2);
+
+        Slot(Object discriminator) {
+            this.discriminator = discriminator;
+        }
+
+        /**
+         * @return the borrowed entry of the resource, which keeps its use count, or null if it was not borrowed here.
+         * Entries borrowed after it were closed on another thread and are dropped.
+         */
+        Parked<R> returned(R resource) {
+            for (int i = borrowed.size() - 1; i >= 0; i--) {
+                Parked<R> p = borrowed.get(i);
+                if (p.resource == resource) {
+                    borrowed.subList(i, borrowed.size()).clear();
+                    return p;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Parked<R> {
+        private final R resource;
+        private int uses;
+        private long parkedAt;
+
+        Parked(R resource) {
+            this.resource = resource;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.kayr.jboomerang;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the resources that are open across all threads, unlike {@link JBoomerang#countOpenResources()} which only
+ * sees the calling thread. Register it with {@link JBoomerang#trackOpenResources(OpenResourceRegistry)}; one registry
+ * can be shared by several boomerangs.
+ * <p>
+ * Reads never block the threads opening and closing resources. A snapshot is not atomic across discriminators, it
+ * reflects each discriminator at the time it was read.
+ */
+public class OpenResourceRegistry {
+
+    //stands in for the null discriminator, which a ConcurrentHashMap cannot hold
+    private static final Object NULL_KEY = new Object();
+
+    private final Map<Object, Entry> entries = new ConcurrentHashMap<>();
+
+    void opened(Object discriminator, JBoomerang.ResourceHolder<?> holder) {
+        Entry entry = entry(discriminator);
+        entry.live.add(holder);
+        entry.open.increment();
+        entry.opened.increment();
+    }
+
+    void closed(Object discriminator, JBoomerang.ResourceHolder<?> holder) {
+        Entry entry = entry(discriminator);
+        if (entry.live.remove(holder)) {
+            entry.open.decrement();
+        }
+    }
+
+    public long countOpen() {
+        long count = 0;
+        for (Entry entry : entries.values()) {
+            count += entry.open.sum();
+        }
+        return count;
+    }
+
+    public long countOpen(Object discriminator) {
+        Entry entry = entries.get(discriminator == null ? NULL_KEY : discriminator);
+        return entry == null ? 0 : entry.open.sum();
+    }
+
+    /**
+     * @return a snapshot of every discriminator that has had a resource opened
+     */
+    public Map<Object, Snapshot> snapshot() {
+        long now = System.nanoTime();
+        Map<Object, Snapshot> result = new LinkedHashMap<>();
+        for (Map.Entry<Object, Entry> e : entries.entrySet()) {
+            Object discriminator = e.getKey() == NULL_KEY ? null : e.getKey();
+            result.put(discriminator, e.getValue().snapshot(discriminator, now));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return a snapshot of the discriminator, null if nothing was opened for it yet
+     */
+    public Snapshot snapshot(Object discriminator) {
+        Entry entry = entries.get(discriminator == null ? NULL_KEY : discriminator);
+        return entry == null ? null : entry.snapshot(discriminator, System.nanoTime());
+    }
+
+    private Entry entry(Object discriminator) {
+        Object key = discriminator == null ? NULL_KEY : discriminator;
+        Entry entry = entries.get(key);
+        return entry != null ? entry : entries.computeIfAbsent(key, d -> new Entry());
+    }
+
+    private static class Entry {
+        private final Set<JBoomerang.ResourceHolder<?>> live = ConcurrentHashMap.newKeySet();
+        private final LongAdder open = new LongAdder();
+        private final LongAdder opened = new LongAdder();
+
+        Snapshot snapshot(Object discriminator, long now) {
+            long oldestAge = 0;
+            for (JBoomerang.ResourceHolder<?> holder : live) {
+                oldestAge = Math.max(oldestAge, now - holder.createdAt);
+            }
+            return new Snapshot(discriminator, open.sum(), opened.sum(), oldestAge);
+        }
+    }
+
+    public static class Snapshot {
+        private final Object discriminator;
+        private final long open;
+        private final long opened;
+        private final long oldestOpenNanos;
+
+        Snapshot(Object discriminator, long open, long opened, long oldestOpenNanos) {
+            this.discriminator = discriminator;
+            this.open = open;
+            this.opened = opened;
+            this.oldestOpenNanos = oldestOpenNanos;
+        }
+
+        public Object getDiscriminator() {
+            return discriminator;
+        }
+
+        public long getOpen() {
+            return open;
+        }
+
+        /**
+         * @return resources opened since the registry was created, including the closed ones
+         */
+        public long getOpened() {
+            return opened;
+        }
+
+        /**
+         * @return how long the oldest resource that is still open has been open, zero if none is open
+         */
+        public Duration getOldestOpenAge() {
+            return Duration.ofNanos(oldestOpenNanos);
+        }
+
+        /**
+         * @return the wall clock time in millis when the oldest open resource was opened, zero if none is open
+         */
+        public long getOldestOpenedAtMillis() {
+            return open == 0 ? 0 : System.currentTimeMillis() - oldestOpenNanos / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "discriminator=" + discriminator +
+                    ", open=" + open +
+                    ", opened=" + opened +
+                    ", oldestOpenAge=" + getOldestOpenAge() +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.kayr.jboomerang;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * How {@link JBoomerang#withResourceParallel(java.util.Collection, ParallelOptions, JBoomerangChunkFunction)} splits
+ * the work and which resources the workers use.
+ * <p>
+ * With {@link JBoomerang.Propagation#JOIN} all workers share the caller's resource, opening one if none is open. With
+ * {@link JBoomerang.Propagation#WITH_NEW} each worker gets its own resource, so at most {@code parallelism} resources
+ * are opened however many chunks there are.
+ */
+public class ParallelOptions {
+
+    private final Object                 discriminator;
+    private final JBoomerang.Propagation propagation;
+    private final JBoomerang.Args        args;
+    private final int                    chunkSize;
+    private final int                    parallelism;
+    private final Executor               executor;
+
+    private ParallelOptions(Builder builder) {
+        this.discriminator = builder.discriminator;
+        this.propagation = builder.propagation;
+        this.args = builder.args;
+        this.chunkSize = builder.chunkSize;
+        this.parallelism = builder.parallelism;
+        this.executor = builder.executor;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    Object getDiscriminator() {
+        return discriminator;
+    }
+
+    JBoomerang.Propagation getPropagation() {
+        return propagation;
+    }
+
+    JBoomerang.Args getArgs() {
+        return args;
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the configured chunk size, or the size that spreads the items evenly over the workers
+     */
+    int chunkSizeFor(int items) {
+        return chunkSize > 0 ? chunkSize : Math.max(1, (items + parallelism - 1) / parallelism);
+    }
+
+    public static class Builder {
+        private Object                 discriminator = JBoomerang.COMMON_DISCRIMINATOR;
+        private JBoomerang.Propagation propagation   = JBoomerang.Propagation.JOIN;
+        private JBoomerang.Args        args          = JBoomerang.Args.none();
+        private int                    chunkSize     = 0;
+        private int                    parallelism   = ForkJoinPool.getCommonPoolParallelism();
+        private Executor               executor      = ForkJoinPool.commonPool();
+
+        Builder() {
+        }
+
+        public Builder discriminator(Object discriminator) {
+            this.discriminator = discriminator;
+            return this;
+        }
+
+        /**
+         * {@link JBoomerang.Propagation#JOIN} to share the caller's resource or {@link JBoomerang.Propagation#WITH_NEW}
+         * for a resource per worker.
+         */
+        public Builder propagation(JBoomerang.Propagation propagation) {
+            this.propagation = propagation;
+            return this;
+        }
+
+        public Builder args(JBoomerang.Args args) {
+            this.args = args;
+            return this;
+        }
+
+        /**
+         * Items per chunk, by default the items are spread evenly over the workers.
+         */
+        public Builder chunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public ParallelOptions build() {
+            if (propagation != JBoomerang.Propagation.JOIN && propagation != JBoomerang.Propagation.WITH_NEW) {
+                throw new IllegalArgumentException("parallel work supports JOIN or WITH_NEW propagation, not " + propagation);
+            }
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism should be at least 1");
+            }
+            if (chunkSize < 0) {
+                throw new IllegalArgumentException("chunk size should not be negative");
+            }
+            return new ParallelOptions(this);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.kayr.jboomerang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One call to {@link JBoomerang#withResourceParallel(Collection, ParallelOptions, JBoomerangChunkFunction)}.
+ * <p>
+ * The worker resources are opened on the calling thread, one nested scope each, and leased to the workers through a
+ * {@link CapturedScope}. Workers take chunks until there are none left or one of them fails. The caller waits for all
+ * workers, so the resources are closed on the calling thread when the scopes unwind, the last opened first.
+ */
+final class ParallelRun<R, T, V> {
+
+    private final JBoomerang<R>                   boomerang;
+    private final ParallelOptions                 options;
+    private final JBoomerangChunkFunction<R, T, V> fx;
+    private final List<List<T>>                   chunks;
+    private final Object[]                        results;
+    private final Throwable[]                     chunkErrors;
+    private final Queue<Throwable>                otherErrors = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger                   next        = new AtomicInteger();
+    private volatile boolean                      failed      = false;
+
+    ParallelRun(JBoomerang<R> boomerang, Collection<? extends T> items, ParallelOptions options, JBoomerangChunkFunction<R, T, V> fx) {
+        this.boomerang = boomerang;
+        this.options = options;
+        this.fx = fx;
+        this.chunks = chunk(new ArrayList<>(items), options.chunkSizeFor(items.size()));
+        this.results = new Object[chunks.size()];
+        this.chunkErrors = new Throwable[chunks.size()];
+    }
+
+    List<V> run() {
+        if (chunks.isEmpty()) {
+            return new ArrayList<>();
+        }
+        int workers = Math.min(options.getParallelism(), chunks.size());
+        List<CapturedScope<R>> captured = new ArrayList<>(workers);
+        if (options.getPropagation() == JBoomerang.Propagation.WITH_NEW) {
+            return openWorkers(workers, captured);
+        }
+        return boomerang.withResource(options.getDiscriminator(), JBoomerang.Propagation.JOIN, options.getArgs(), r -> {
+            while (captured.size() < workers) {
+                capture(captured);
+            }
+            return runWorkers(captured);
+        });
+    }
+
+    private List<V> openWorkers(int workers, List<CapturedScope<R>> captured) {
+        if (captured.size() == workers) {
+            return runWorkers(captured);
+        }
+        return boomerang.withResource(options.getDiscriminator(), JBoomerang.Propagation.WITH_NEW, options.getArgs(), r -> {
+            capture(captured);
+            return openWorkers(workers, captured);
+        });
+    }
+
+    private void capture(List<CapturedScope<R>> captured) {
+        try {
+            captured.add(boomerang.captureScope());
+        } catch (RuntimeException x) {
+            for (CapturedScope<R> c : captured) {
+                c.discard();
+            }
+            throw x;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<V> runWorkers(List<CapturedScope<R>> captured) {
+        CountDownLatch done = new CountDownLatch(captured.size());
+        for (CapturedScope<R> scope : captured) {
+            try {
+                options.getExecutor().execute(() -> {
+                    try {
+                        scope.run(this::work);
+                    } catch (Throwable x) {//NOSONAR
+                        fail(x);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RuntimeException x) {
+                scope.discard();
+                fail(x);
+                done.countDown();
+            }
+        }
+        awaitWorkers(done);
+
+        Throwable error = collectErrors();
+        if (error != null) {
+            return ExceptionUtil.sneakyThrow(error);
+        }
+        return (List<V>) Arrays.asList(results);
+    }
+
+    private void work() {
+        int index;
+        while (!failed && (index = next.getAndIncrement()) < chunks.size()) {
+            List<T> chunk = chunks.get(index);
+            try {
+                results[index] = boomerang.withResource(options.getDiscriminator(), JBoomerang.Propagation.JOIN, options.getArgs(), r -> fx.apply(r, chunk));
+            } catch (Throwable x) {//NOSONAR
+                chunkErrors[index] = x;
+                failed = true;
+            }
+        }
+    }
+
+    private void fail(Throwable x) {
+        otherErrors.add(x);
+        failed = true;
+    }
+
+    /**
+     * Waits through {@link ForkJoinPool#managedBlock} so that a caller running in a fork join pool, e.g. the common
+     * pool the workers default to, lets the pool add a thread for the workers instead of starving them.
+     */
+    private void awaitWorkers(CountDownLatch done) {
+        ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                done.await();
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done.getCount() == 0;
+            }
+        };
+        boolean interrupted = false;
+        for (; ; ) {
+            try {
+                ForkJoinPool.managedBlock(blocker);
+                break;
+            } catch (InterruptedException x) {
+                //the workers are using our resources, stop handing out chunks but wait for them
+                interrupted = true;
+                failed = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the failure of the first failed chunk with all the others suppressed, or null
+     */
+    private Throwable collectErrors() {
+        Throwable primary = null;
+        List<Throwable> all = new ArrayList<>();
+        for (Throwable x : chunkErrors) {
+            if (x != null) {
+                all.add(x);
+            }
+        }
+        all.addAll(otherErrors);
+        for (Throwable x : all) {
+            if (primary == null) {
+                primary = x;
+            } else if (x != primary) {
+                primary.addSuppressed(x);
+            }
+        }
+        return primary;
+    }
+
+    private static <T> List<List<T>> chunk(List<T> items, int chunkSize) {
+        List<List<T>> chunks = new ArrayList<>((items.size() + chunkSize - 1) / chunkSize);
+        for (int from = 0; from < items.size(); from += chunkSize) {
+            chunks.add(items.subList(from, Math.min(items.size(), from + chunkSize)));
+        }
+        return chunks;
+    }
+}
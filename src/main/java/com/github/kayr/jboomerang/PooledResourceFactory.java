@@ -0,0 +1,298 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A {@link JBoomerang.ResourceFactory} that keeps closed resources in a per discriminator pool so that the next
+ * outermost scope can borrow them instead of creating a new one.
+ * <p>
+ * {@link #close(Object, Object)} returns the resource to the pool and {@link #onException(Object, Object)} either
+ * resets it (when a reset function is configured) or marks it to be discarded on close. Borrow and return do not lock.
+ * The {@link JBoomerang.Args} passed to create are only used when a new resource has to be created.
+ */
+public class PooledResourceFactory<R> implements JBoomerang.ResourceFactory<R>, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledResourceFactory.class);
+
+    private final JBoomerang.ResourceFactory<R> delegate;
+    private final int minIdle;
+    private final int maxSize;
+    private final long maxIdleNanos;
+    private final Predicate<R> validator;
+    private final Consumer<R> resetter;
+
+    private final Map<Object, SubPool<R>> pools = new ConcurrentHashMap<>();
+    private final Map<IdentityKey, Boolean> discarded = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private PooledResourceFactory(Builder<R> builder) {
+        this.delegate = builder.delegate;
+        this.minIdle = builder.minIdle;
+        this.maxSize = builder.maxSize;
+        this.maxIdleNanos = builder.maxIdleTime.toNanos();
+        this.validator = builder.validator;
+        this.resetter = builder.resetter;
+    }
+
+    public static <R> Builder<R> builder(JBoomerang.ResourceFactory<R> delegate) {
+        return new Builder<>(delegate);
+    }
+
+    @Override
+    public R create(Object discriminator, JBoomerang.Args args) {
+        SubPool<R> pool = getPool(discriminator);
+        PooledEntry<R> entry;
+        while ((entry = pool.idle.pollFirst()) != null) {
+            pool.idleCount.decrementAndGet();
+            if (isExpired(entry, System.nanoTime())) {
+                LOG.trace("-->Discarding expired pooled resource: {}", entry.resource);
+                destroy(discriminator, pool, entry.resource);
+            } else if (!isValid(entry.resource)) {
+                LOG.trace("-->Discarding invalid pooled resource: {}", entry.resource);
+                destroy(discriminator, pool, entry.resource);
+            } else {
+                return entry.resource;
+            }
+        }
+        return createNew(discriminator, pool, args);
+    }
+
+    @Override
+    public void close(Object discriminator, R resource) {
+        SubPool<R> pool = getPool(discriminator);
+        if (discarded.remove(new IdentityKey(resource)) != null) {
+            destroy(discriminator, pool, resource);
+            return;
+        }
+        PooledEntry<R> entry = new PooledEntry<>(resource, System.nanoTime());
+        pool.idle.offerFirst(entry);
+        pool.idleCount.incrementAndGet();
+        //checked after offering, either this or close() sees the entry
+        if (closed && pool.idle.removeFirstOccurrence(entry)) {
+            pool.idleCount.decrementAndGet();
+            destroy(discriminator, pool, resource);
+        }
+    }
+
+    @Override
+    public void onException(Object discriminator, R resource) {
+        delegate.onException(discriminator, resource);
+        if (resetter == null) {
+            discarded.put(new IdentityKey(resource), Boolean.TRUE);
+            return;
+        }
+        try {
+            resetter.accept(resource);
+        } catch (RuntimeException x) {
+            LOG.debug("failed to reset resource, it will be discarded: {}", resource, x);
+            discarded.put(new IdentityKey(resource), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Closes resources that have been idle for longer than the configured max idle time, keeping at least min idle
+     * resources per discriminator. Call this periodically, e.g from a scheduled executor.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        for (Map.Entry<Object, SubPool<R>> e : pools.entrySet()) {
+            SubPool<R> pool = e.getValue();
+            for (Iterator<PooledEntry<R>> it = pool.idle.descendingIterator(); it.hasNext(); ) {
+                PooledEntry<R> entry = it.next();
+                if (pool.idleCount.get() <= minIdle) {
+                    break;
+                }
+                if (isExpired(entry, now) && pool.idle.removeLastOccurrence(entry)) {
+                    pool.idleCount.decrementAndGet();
+                    destroy(e.getKey(), pool, entry.resource);
+                }
+            }
+            fillMinIdle(e.getKey(), pool);
+        }
+    }
+
+    public int countIdle(Object discriminator) {
+        SubPool<R> pool = pools.get(discriminator);
+        return pool == null ? 0 : pool.idleCount.get();
+    }
+
+    public int countTotal(Object discriminator) {
+        SubPool<R> pool = pools.get(discriminator);
+        return pool == null ? 0 : pool.size.get();
+    }
+
+    /**
+     * Closes all idle resources. Borrowed resources are closed when they are returned, they no longer go back to the
+     * pool.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Map.Entry<Object, SubPool<R>> e : pools.entrySet()) {
+            SubPool<R> pool = e.getValue();
+            PooledEntry<R> entry;
+            while ((entry = pool.idle.pollFirst()) != null) {
+                pool.idleCount.decrementAndGet();
+                destroy(e.getKey(), pool, entry.resource);
+            }
+        }
+    }
+
+    private SubPool<R> getPool(Object discriminator) {
+        SubPool<R> pool = pools.get(discriminator);
+        if (pool != null) {
+            return pool;
+        }
+        SubPool<R> newPool = new SubPool<>();
+        pool = pools.putIfAbsent(discriminator, newPool);
+        if (pool == null) {
+            fillMinIdle(discriminator, newPool);
+            return newPool;
+        }
+        return pool;
+    }
+
+    private void fillMinIdle(Object discriminator, SubPool<R> pool) {
+        while (!closed && pool.idleCount.get() < minIdle && reserve(pool)) {
+            R resource = createReserved(discriminator, pool, JBoomerang.Args.none());
+            pool.idle.offerLast(new PooledEntry<>(resource, System.nanoTime()));
+            pool.idleCount.incrementAndGet();
+        }
+    }
+
+    private R createNew(Object discriminator, SubPool<R> pool, JBoomerang.Args args) {
+        if (!reserve(pool)) {
+            throw new IllegalStateException("resource pool exhausted for [" + discriminator + "], max size: " + maxSize);
+        }
+        return createReserved(discriminator, pool, args);
+    }
+
+    private R createReserved(Object discriminator, SubPool<R> pool, JBoomerang.Args args) {
+        try {
+            R resource = delegate.create(discriminator, args);
+            if (resource == null) {
+                throw new NullPointerException("Unexpected null returned for resource");
+            }
+            return resource;
+        } catch (RuntimeException x) {
+            pool.size.decrementAndGet();
+            throw x;
+        }
+    }
+
+    private boolean reserve(SubPool<R> pool) {
+        for (; ; ) {
+            int current = pool.size.get();
+            if (current >= maxSize) {
+                return false;
+            }
+            if (pool.size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void destroy(Object discriminator, SubPool<R> pool, R resource) {
+        pool.size.decrementAndGet();
+        try {
+            delegate.close(discriminator, resource);
+        } catch (RuntimeException x) {
+            LOG.warn("failed to close pooled resource: {}", resource, x);
+        }
+    }
+
+    private boolean isExpired(PooledEntry<R> entry, long now) {
+        return now - entry.returnedAt > maxIdleNanos;
+    }
+
+    private boolean isValid(R resource) {
+        try {
+            return validator == null || validator.test(resource);
+        } catch (RuntimeException x) {
+            LOG.debug("validation failed for resource: {}", resource, x);
+            return false;
+        }
+    }
+
+    public static class Builder<R> {
+        private final JBoomerang.ResourceFactory<R> delegate;
+        private int minIdle = 0;
+        private int maxSize = Integer.MAX_VALUE;
+        private Duration maxIdleTime = Duration.ofMinutes(10);
+        private Predicate<R> validator;
+        private Consumer<R> resetter;
+
+        Builder(JBoomerang.ResourceFactory<R> delegate) {
+            this.delegate = delegate;
+        }
+
+        public Builder<R> minIdle(int minIdle) {
+            this.minIdle = minIdle;
+            return this;
+        }
+
+        public Builder<R> maxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public Builder<R> maxIdleTime(Duration maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+            return this;
+        }
+
+        /**
+         * Resources failing this check when borrowed are closed and another one is borrowed or created.
+         */
+        public Builder<R> validateWith(Predicate<R> validator) {
+            this.validator = validator;
+            return this;
+        }
+
+        /**
+         * Resets a resource after an exception so that it can go back to the pool. Without a reset function
+         * such resources are discarded.
+         */
+        public Builder<R> resetWith(Consumer<R> resetter) {
+            this.resetter = resetter;
+            return this;
+        }
+
+        public PooledResourceFactory<R> build() {
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("max size should be at least 1");
+            }
+            if (minIdle < 0 || minIdle > maxSize) {
+                throw new IllegalArgumentException("min idle should be between 0 and max size");
+            }
+            return new PooledResourceFactory<>(this);
+        }
+    }
+
+    private static class SubPool<R> {
+        private final ConcurrentLinkedDeque<PooledEntry<R>> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+    private static class PooledEntry<R> {
+        private final R resource;
+        private final long returnedAt;
+
+        PooledEntry(R resource, long returnedAt) {
+            this.resource = resource;
+            this.returnedAt = returnedAt;
+        }
+    }
+
+}
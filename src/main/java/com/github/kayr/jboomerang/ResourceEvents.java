@@ -0,0 +1,46 @@
+package com.github.kayr.jboomerang;
+
+/**
+ * Emits flight recorder events when the running JVM has {@code jdk.jfr}, does nothing otherwise. The recorder backed
+ * implementation lives in the Java 11 part of the multi-release jar and is loaded reflectively, so that the main
+ * sources compile for Java 8 and JVMs without it never load the event classes.
+ * <p>
+ * A begin method returns null when its event is not enabled in the recording settings, callers skip the rest of
+ * the work in that case.
+ */
+class ResourceEvents {
+
+    static final ResourceEvents EVENTS = load();
+
+    Object beginScope() {
+        return null;
+    }
+
+    void commitScope(Object event, Object discriminator, JBoomerang.Propagation propagation, int depth, int holders) {
+    }
+
+    Object beginCreate() {
+        return null;
+    }
+
+    void commitCreate(Object event, Object discriminator, JBoomerang.Propagation propagation, Scope<?> scope) {
+    }
+
+    Object beginClose() {
+        return null;
+    }
+
+    void commitClose(Object event, Object discriminator, Scope<?> scope) {
+    }
+
+    private static ResourceEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (ResourceEvents) Class.forName("com.github.kayr.jboomerang.FlightRecorderEvents")
+                                         .getDeclaredConstructor()
+                                         .newInstance();
+        } catch (ReflectiveOperationException | LinkageError x) {
+            return new ResourceEvents();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.kayr.jboomerang;
+
+/**
+ * A resource that is only created on first use, see {@link JBoomerang#withLazyResource(JBoomerangFunction)}.
+ * A handle must not be used after the function it was passed to returns.
+ */
+public interface ResourceHandle<R> {
+
+    /**
+     * @return the resource, creating it if this is the first access
+     */
+    R get();
+
+    boolean isAcquired();
+}
@@ -0,0 +1,43 @@
+package com.github.kayr.jboomerang;
+
+/**
+ * Receives resource lifecycle events from {@link JBoomerang}. Events are delivered on the thread doing the work, so
+ * implementations should be fast and should not throw. Timings are in nanoseconds.
+ *
+ * @see ResourceMetrics
+ */
+public interface ResourceListener {
+
+    /**
+     * A new resource was created, {@code createNanos} is the time spent in the factory.
+     */
+    default void onCreate(Object discriminator, JBoomerang.Propagation propagation, long createNanos) {
+    }
+
+    /**
+     * An open resource was joined, {@code depth} is the nesting depth including this call.
+     */
+    default void onJoin(Object discriminator, int depth) {
+    }
+
+    /**
+     * A resource was closed. {@code holdNanos} is the time since it was created.
+     */
+    default void onClose(Object discriminator, long holdNanos, long closeNanos) {
+    }
+
+    /**
+     * The factory is being notified that the work using the resource failed.
+     */
+    default void onException(Object discriminator) {
+    }
+
+    default void onCloseFailure(Object discriminator, Throwable error) {
+    }
+
+    /**
+     * A thread waited for a permit to create a resource, see {@link AdmissionControl}.
+     */
+    default void onAdmissionWait(Object discriminator, long waitNanos, boolean admitted) {
+    }
+}
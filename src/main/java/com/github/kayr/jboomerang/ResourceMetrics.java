@@ -0,0 +1,172 @@
+package com.github.kayr.jboomerang;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link ResourceListener} that keeps counters and latency histograms per discriminator. Recording does not lock
+ * so it can be left registered in production.
+ * <pre>
+ *     ResourceMetrics metrics = new ResourceMetrics();
+ *     JBoomerang&lt;Connection&gt; rm = new JBoomerang&lt;&gt;(factory).addListener(metrics);
+ *     ...
+ *     metrics.get("db").getHoldTime().getValueAtPercentile(99);
+ * </pre>
+ */
+public class ResourceMetrics implements ResourceListener {
+
+    //stands in for the null discriminator, which a ConcurrentHashMap cannot hold
+    private static final Object NULL_KEY = new Object();
+
+    private final Map<Object, Stats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void onCreate(Object discriminator, JBoomerang.Propagation propagation, long createNanos) {
+        Stats s = stats(discriminator);
+        s.creates.increment();
+        if (propagation == JBoomerang.Propagation.WITH_NEW) {
+            s.withNew.increment();
+        }
+        s.createLatency.record(createNanos);
+        s.depth.record(1);
+    }
+
+    @Override
+    public void onJoin(Object discriminator, int depth) {
+        Stats s = stats(discriminator);
+        s.joins.increment();
+        s.depth.record(depth);
+    }
+
+    @Override
+    public void onClose(Object discriminator, long holdNanos, long closeNanos) {
+        Stats s = stats(discriminator);
+        s.closes.increment();
+        s.holdTime.record(holdNanos);
+        s.closeLatency.record(closeNanos);
+    }
+
+    @Override
+    public void onException(Object discriminator) {
+        stats(discriminator).exceptions.increment();
+    }
+
+    @Override
+    public void onCloseFailure(Object discriminator, Throwable error) {
+        stats(discriminator).closeFailures.increment();
+    }
+
+    @Override
+    public void onAdmissionWait(Object discriminator, long waitNanos, boolean admitted) {
+        Stats s = stats(discriminator);
+        s.admissionWait.record(waitNanos);
+        if (!admitted) {
+            s.admissionRejections.increment();
+        }
+    }
+
+    /**
+     * @return the stats for the discriminator, null if nothing was recorded for it yet
+     */
+    public Stats get(Object discriminator) {
+        return stats.get(discriminator == null ? NULL_KEY : discriminator);
+    }
+
+    public Set<Object> getDiscriminators() {
+        if (!stats.containsKey(NULL_KEY)) {
+            return Collections.unmodifiableSet(stats.keySet());
+        }
+        Set<Object> discriminators = new HashSet<>(stats.keySet());
+        discriminators.remove(NULL_KEY);
+        discriminators.add(null);
+        return Collections.unmodifiableSet(discriminators);
+    }
+
+    private Stats stats(Object discriminator) {
+        Object key = discriminator == null ? NULL_KEY : discriminator;
+        Stats s = stats.get(key);
+        return s != null ? s : stats.computeIfAbsent(key, d -> new Stats());
+    }
+
+    public static class Stats {
+        private final LongAdder creates = new LongAdder();
+        private final LongAdder withNew = new LongAdder();
+        private final LongAdder joins = new LongAdder();
+        private final LongAdder closes = new LongAdder();
+        private final LongAdder exceptions = new LongAdder();
+        private final LongAdder closeFailures = new LongAdder();
+        private final LongAdder admissionRejections = new LongAdder();
+        private final LatencyHistogram createLatency = new LatencyHistogram();
+        private final LatencyHistogram holdTime = new LatencyHistogram();
+        private final LatencyHistogram closeLatency = new LatencyHistogram();
+        private final LatencyHistogram depth = new LatencyHistogram();
+        private final LatencyHistogram admissionWait = new LatencyHistogram();
+
+        public long getCreates() {
+            return creates.sum();
+        }
+
+        /**
+         * @return how many of the creates were forced by {@link JBoomerang.Propagation#WITH_NEW}
+         */
+        public long getWithNewCreates() {
+            return withNew.sum();
+        }
+
+        public long getJoins() {
+            return joins.sum();
+        }
+
+        public long getCloses() {
+            return closes.sum();
+        }
+
+        public long getExceptions() {
+            return exceptions.sum();
+        }
+
+        public long getCloseFailures() {
+            return closeFailures.sum();
+        }
+
+        public LatencyHistogram getCreateLatency() {
+            return createLatency;
+        }
+
+        /**
+         * @return time from create to close of each resource
+         */
+        public LatencyHistogram getHoldTime() {
+            return holdTime;
+        }
+
+        public LatencyHistogram getCloseLatency() {
+            return closeLatency;
+        }
+
+        /**
+         * @return creates refused by {@link AdmissionControl} after waiting
+         */
+        public long getAdmissionRejections() {
+            return admissionRejections.sum();
+        }
+
+        /**
+         * @return time spent waiting for an {@link AdmissionControl} permit before each create
+         */
+        public LatencyHistogram getAdmissionWait() {
+            return admissionWait;
+        }
+
+        /**
+         * @return the nesting depth of every create (1) and join
+         */
+        public LatencyHistogram getDepth() {
+            return depth;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.github.kayr.jboomerang;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * A {@link JBoomerang.ResourceFactory} that creates each resource on one of several backends, e.g. a primary and its
+ * read replicas, so that one {@link JBoomerang} can serve all of them.
+ * <p>
+ * The backends a resource may come from are routed by discriminator, or by discriminator and args. Among them the
+ * least loaded one is picked: the one with the fewest open resources, or with {@link Selection#LATENCY_WEIGHTED} the
+ * one with the lowest open resources times average create latency. Ties go round robin. Every other call for a
+ * resource goes to the backend that created it, and since JOIN and NESTED reuse the outer resource they stay on the
+ * backend the outer scope was given.
+ */
+public class RoutingResourceFactory<R> implements JBoomerang.ResourceFactory<R> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RoutingResourceFactory.class);
+
+    public enum Selection {LEAST_OPEN, LATENCY_WEIGHTED}
+
+    private final Map<String, Backend<R>>      backends;
+    private final Backend<R>[]                 all;
+    private final Map<Object, Backend<R>[]>    routes;
+    private final Selection                    selection;
+    private final Map<IdentityKey, Backend<R>> owners = new ConcurrentHashMap<>();
+    private final AtomicInteger                next   = new AtomicInteger();
+    private final BiFunction<Object, JBoomerang.Args, ? extends Collection<String>> router;
+
+    private RoutingResourceFactory(Builder<R> builder) {
+        this.backends = new LinkedHashMap<>();
+        builder.backends.forEach((name, factory) -> backends.put(name, new Backend<>(name, factory)));
+        this.all = toArray(backends.values());
+        this.routes = new HashMap<>();
+        builder.routes.forEach((d, names) -> routes.put(d, resolve(names)));
+        this.router = builder.router;
+        this.selection = builder.selection;
+    }
+
+    public static <R> Builder<R> builder() {
+        return new Builder<>();
+    }
+
+    @Override
+    public R create(Object discriminator, JBoomerang.Args args) {
+        Backend<R> backend = select(candidates(discriminator, args));
+        backend.open.incrementAndGet();
+        boolean created = false;
+        try {
+            long start = System.nanoTime();
+            R resource = backend.factory.create(discriminator, args);
+            if (resource != null) {
+                backend.recordLatency(System.nanoTime() - start);
+                owners.put(new IdentityKey(resource), backend);
+                created = true;
+            }
+            LOG.trace("--->Routed resource for [{}] to backend: {}", discriminator, backend.name);
+            return resource;
+        } finally {
+            if (!created) {
+                backend.open.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void close(Object discriminator, R resource) {
+        Backend<R> backend = owners.remove(new IdentityKey(resource));
+        if (backend == null) {
+            throw new IllegalStateException("resource was not created by this router: " + resource);
+        }
+        try {
+            backend.factory.close(discriminator, resource);
+        } finally {
+            backend.open.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void onException(Object discriminator, R resource) {
+        owner(resource).factory.onException(discriminator, resource);
+    }
+
+    @Override
+    public R createChild(Object discriminator, R parent) {
+        return owner(parent).factory.createChild(discriminator, parent);
+    }
+
+    @Override
+    public void releaseChild(Object discriminator, R child, R parent) {
+        owner(parent).factory.releaseChild(discriminator, child, parent);
+    }
+
+    @Override
+    public void onChildException(Object discriminator, R child, R parent) {
+        owner(parent).factory.onChildException(discriminator, child, parent);
+    }
+
+    @Override
+    public void onSuspend(Object discriminator, R resource) {
+        owner(resource).factory.onSuspend(discriminator, resource);
+    }
+
+    @Override
+    public void onResume(Object discriminator, R resource) {
+        owner(resource).factory.onResume(discriminator, resource);
+    }
+
+    /**
+     * Deferrable only when it is for every backend, since the backend of the closed resource is not known here.
+     */
+    @Override
+    public boolean isCloseDeferrable(Object discriminator) {
+        for (Backend<R> backend : all) {
+            if (!backend.factory.isCloseDeferrable(discriminator)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the name of the backend that created the resource, or null when it is not open
+     */
+    public String backendOf(R resource) {
+        Backend<R> backend = owners.get(new IdentityKey(resource));
+        return backend == null ? null : backend.name;
+    }
+
+    public int countOpen(String backend) {
+        return backend(backend).open.get();
+    }
+
+    private Backend<R> owner(R resource) {
+        Backend<R> backend = owners.get(new IdentityKey(resource));
+        if (backend == null) {
+            throw new IllegalStateException("resource was not created by this router: " + resource);
+        }
+        return backend;
+    }
+
+    private Backend<R>[] candidates(Object discriminator, JBoomerang.Args args) {
+        if (router != null) {
+            Collection<String> names = router.apply(discriminator, args);
+            if (names != null) {
+                return resolve(names);
+            }
+        }
+        Backend<R>[] routed = routes.get(discriminator);
+        return routed != null ? routed : all;
+    }
+
+    private Backend<R> select(Backend<R>[] candidates) {
+        int n = candidates.length;
+        int offset = n == 1 ? 0 : Math.floorMod(next.getAndIncrement(), n);
+        Backend<R> best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            Backend<R> backend = candidates[(offset + i) % n];
+            double load = selection == Selection.LEAST_OPEN ? backend.open.get() : backend.weightedLoad();
+            if (load < bestLoad) {
+                best = backend;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private Backend<R>[] resolve(Collection<String> names) {
+        if (names.isEmpty()) {
+            throw new IllegalStateException("no backend to route to");
+        }
+        List<Backend<R>> resolved = new ArrayList<>(names.size());
+        for (String name : names) {
+            resolved.add(backend(name));
+        }
+        return toArray(resolved);
+    }
+
+    private Backend<R> backend(String name) {
+        Backend<R> backend = backends.get(name);
+        if (backend == null) {
+            throw new IllegalStateException("unknown backend: " + name);
+        }
+        return backend;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> Backend<R>[] toArray(Collection<Backend<R>> backends) {
+        return (Backend<R>[]) backends.toArray(new Backend<?>[0]);
+    }
+
+    private static final class Backend<R> {
+        private final String                        name;
+        private final JBoomerang.ResourceFactory<R> factory;
+        //resources open or being created
+        private final AtomicInteger                 open = new AtomicInteger();
+        //moving average of create nanos, racy updates only lose a sample
+        private volatile double                     latency;
+
+        Backend(String name, JBoomerang.ResourceFactory<R> factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+
+        void recordLatency(long nanos) {
+            double current = latency;
+            latency = current == 0 ? nanos : current + (nanos - current) * 0.2;
+        }
+
+        double weightedLoad() {
+            return (open.get() + 1) * Math.max(latency, 1);
+        }
+    }
+
+    public static class Builder<R> {
+        private final Map<String, JBoomerang.ResourceFactory<R>> backends = new LinkedHashMap<>();
+        private final Map<Object, List<String>>                  routes   = new HashMap<>();
+        private BiFunction<Object, JBoomerang.Args, ? extends Collection<String>> router;
+        private Selection selection = Selection.LEAST_OPEN;
+
+        Builder() {
+        }
+
+        public Builder<R> backend(String name, JBoomerang.ResourceFactory<R> factory) {
+            backends.put(name, factory);
+            return this;
+        }
+
+        /**
+         * The backends resources of the discriminator may come from. Discriminators without a route use all backends.
+         */
+        public Builder<R> route(Object discriminator, String... backends) {
+            routes.put(discriminator, Arrays.asList(backends));
+            return this;
+        }
+
+        /**
+         * Routes by discriminator and args, e.g. writes to the primary. A null result falls back to the routes.
+         */
+        public Builder<R> routeBy(BiFunction<Object, JBoomerang.Args, ? extends Collection<String>> router) {
+            this.router = router;
+            return this;
+        }
+
+        /**
+         * How the backend is picked among the routed ones. Defaults to {@link Selection#LEAST_OPEN}.
+         */
+        public Builder<R> selection(Selection selection) {
+            this.selection = selection;
+            return this;
+        }
+
+        public RoutingResourceFactory<R> build() {
+            if (backends.isEmpty()) {
+                throw new IllegalArgumentException("at least one backend is required");
+            }
+            routes.forEach((d, names) -> {
+                if (names.isEmpty() || !backends.keySet().containsAll(names)) {
+                    throw new IllegalArgumentException("route for [" + d + "] should name known backends: " + names);
+                }
+            });
+            return new RoutingResourceFactory<>(this);
+        }
+    }
+}
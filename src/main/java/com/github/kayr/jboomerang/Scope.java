@@ -0,0 +1,39 @@
+package com.github.kayr.jboomerang;
+
+import java.util.List;
+
+/**
+ * Read only view of the scopes open on the current thread, as kept by a {@link ScopeStore}.
+ */
+interface Scope<R> {
+
+    Object currentDiscriminator();
+
+    /**
+     * @return the innermost holder for the discriminator, or null if there is none
+     */
+    JBoomerang.ResourceHolder<R> peek(Object discriminator);
+
+    /**
+     * @return the innermost holder for the discriminator created with equal args, or null if there is none
+     */
+    JBoomerang.ResourceHolder<R> peek(Object discriminator, JBoomerang.Args args);
+
+    /**
+     * @return the innermost holder for the current discriminator, or null if there is none
+     */
+    JBoomerang.ResourceHolder<R> peekCurrent();
+
+    int depth(Object discriminator);
+
+    int countDiscriminators();
+
+    int discriminatorDepth();
+
+    /**
+     * @return the discriminators that have an open resource, outermost first and the current one last
+     */
+    List<Object> visibleDiscriminators();
+
+    JBoomerang.ResourceHolder<R> newHolder(R resource);
+}
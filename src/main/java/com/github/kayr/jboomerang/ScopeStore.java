@@ -0,0 +1,59 @@
+package com.github.kayr.jboomerang;
+
+/**
+ * Keeps track of the discriminators and resource holders of the scopes that are open on the current thread.
+ * <p>
+ * A call to {@link JBoomerang#withResource} goes through {@link #enter}, then {@link #call} to run the function with the
+ * resource, {@link #release} once the holder it created completes and finally {@link #exit}.
+ */
+abstract class ScopeStore<R> {
+
+    /**
+     * @return the scopes open on the current thread or null if there are none. Never changes any state.
+     */
+    abstract Scope<R> current();
+
+    final Scope<R> enter(Object discriminator) {
+        return enter(current(), discriminator);
+    }
+
+    /**
+     * @param current what {@link #current()} returned on this thread, saves looking it up again
+     */
+    abstract Scope<R> enter(Scope<R> current, Object discriminator);
+
+    /**
+     * Enters the discriminator that is already current on the scope again, for a join of its innermost holder.
+     */
+    Scope<R> reenter(Scope<R> current) {
+        return enter(current, current.currentDiscriminator());
+    }
+
+    abstract void exit(Scope<R> scope);
+
+    /**
+     * Runs the function with the resource. A holder that was just created for this call is passed as created so that
+     * it is visible to nested calls.
+     */
+    abstract <V> V call(Scope<R> scope, Object discriminator, JBoomerang.ResourceHolder<R> created,
+                        JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer, R resource) throws Exception;
+
+    /**
+     * Runs the function without a resource while the holders of the discriminator are hidden from nested calls.
+     */
+    abstract <V> V callSuspended(Scope<R> scope, Object discriminator,
+                                 JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) throws Exception;
+
+    /**
+     * Called when a holder created by this thread completes.
+     */
+    abstract void release(Scope<R> scope, Object discriminator, JBoomerang.ResourceHolder<R> holder);
+
+    static <R, V> V apply(JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer, R resource) throws Exception {
+        if (fx != null) {
+            return fx.apply(resource);
+        }
+        consumer.accept(resource);
+        return null;
+    }
+}
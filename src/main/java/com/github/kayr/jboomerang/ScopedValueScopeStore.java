@@ -0,0 +1,268 @@
+package com.github.kayr.jboomerang;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Keeps the open scopes in a {@code java.lang.ScopedValue}. Every call binds an immutable frame that points to the
+ * frame of the enclosing call, so nothing is stored per thread and threads forked in a
+ * {@code StructuredTaskScope} see the frames, and therefore the resources, of the scope they were forked from.
+ * <p>
+ * The ScopedValue API is looked up reflectively so that the library still runs on Java 8; this store is only
+ * available on JVMs that have it.
+ */
+final class ScopedValueScopeStore<R> extends ScopeStore<R> {
+
+    private static final MethodHandle NEW_INSTANCE;
+    private static final MethodHandle WHERE;
+    private static final MethodHandle RUN;
+    private static final MethodHandle IS_BOUND;
+    private static final MethodHandle GET;
+
+    static {
+        MethodHandle newInstance = null;
+        MethodHandle where = null;
+        MethodHandle run = null;
+        MethodHandle isBound = null;
+        MethodHandle get = null;
+        try {
+            Class<?> scopedValue = Class.forName("java.lang.ScopedValue");
+            Class<?> carrier = Class.forName("java.lang.ScopedValue$Carrier");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            newInstance = lookup.findStatic(scopedValue, "newInstance", methodType(scopedValue))
+                                .asType(methodType(Object.class));
+            where = lookup.findStatic(scopedValue, "where", methodType(carrier, scopedValue, Object.class))
+                          .asType(methodType(Object.class, Object.class, Object.class));
+            run = lookup.findVirtual(carrier, "run", methodType(void.class, Runnable.class))
+                        .asType(methodType(void.class, Object.class, Runnable.class));
+            isBound = lookup.findVirtual(scopedValue, "isBound", methodType(boolean.class))
+                            .asType(methodType(boolean.class, Object.class));
+            get = lookup.findVirtual(scopedValue, "get", methodType(Object.class))
+                        .asType(methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException | RuntimeException x) {//NOSONAR
+            newInstance = null;
+        }
+        NEW_INSTANCE = newInstance;
+        WHERE = where;
+        RUN = run;
+        IS_BOUND = isBound;
+        GET = get;
+    }
+
+    private static final Frame<?> ROOT = new Frame<>(null, null, null, false);
+
+    private final Object key;
+
+    ScopedValueScopeStore() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("java.lang.ScopedValue is not available on this JVM: " + System.getProperty("java.version"));
+        }
+        try {
+            key = (Object) NEW_INSTANCE.invokeExact();
+        } catch (Throwable x) {//NOSONAR
+            throw new IllegalStateException("failed to create scoped value", x);
+        }
+    }
+
+    static boolean isSupported() {
+        return NEW_INSTANCE != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Frame<R> current() {
+        try {
+            if ((boolean) IS_BOUND.invokeExact(key)) {
+                return (Frame<R>) (Object) GET.invokeExact(key);
+            }
+            return null;
+        } catch (Throwable x) {//NOSONAR
+            throw new IllegalStateException("failed to read scoped value", x);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    Scope<R> enter(Scope<R> current, Object discriminator) {
+        return current == null ? (Frame<R>) ROOT : current;
+    }
+
+    @Override
+    void exit(Scope<R> scope) {
+        //nothing to clear, the frame is unbound when the call returns
+    }
+
+    @Override
+    <V> V call(Scope<R> scope, Object discriminator, JBoomerang.ResourceHolder<R> created,
+               JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer, R resource) throws Exception {
+        Frame<R> frame = new Frame<>(discriminator, created, (Frame<R>) scope, false);
+        Invocation<R, V> invocation = new Invocation<>(fx, consumer, resource);
+        try {
+            RUN.invokeExact((Object) WHERE.invokeExact(key, (Object) frame), (Runnable) invocation);
+        } catch (Throwable x) {//NOSONAR
+            ExceptionUtil.sneakyThrow(x);
+        }
+        return invocation.getResult();
+    }
+
+    @Override
+    <V> V callSuspended(Scope<R> scope, Object discriminator,
+                        JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) throws Exception {
+        Frame<R> frame = new Frame<>(discriminator, null, (Frame<R>) scope, true);
+        Invocation<R, V> invocation = new Invocation<>(fx, consumer, null);
+        try {
+            RUN.invokeExact((Object) WHERE.invokeExact(key, (Object) frame), (Runnable) invocation);
+        } catch (Throwable x) {//NOSONAR
+            ExceptionUtil.sneakyThrow(x);
+        }
+        return invocation.getResult();
+    }
+
+    @Override
+    void release(Scope<R> scope, Object discriminator, JBoomerang.ResourceHolder<R> holder) {
+        //the frame holding the holder has already been unbound
+    }
+
+    static final class Frame<R> implements Scope<R> {
+        private final Object                       discriminator;
+        private final JBoomerang.ResourceHolder<R> holder;
+        private final Frame<R>                     parent;
+        private final int                          depth;
+        //hides the holders of outer frames with the same discriminator
+        private final boolean                      suspended;
+
+        Frame(Object discriminator, JBoomerang.ResourceHolder<R> holder, Frame<R> parent, boolean suspended) {
+            this.discriminator = discriminator;
+            this.holder = holder;
+            this.parent = parent;
+            this.suspended = suspended;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        @Override
+        public Object currentDiscriminator() {
+            return discriminator;
+        }
+
+        @Override
+        public JBoomerang.ResourceHolder<R> peek(Object discriminator) {
+            for (Frame<R> f = this; f != null; f = f.parent) {
+                if ((f.holder != null || f.suspended) && Objects.equals(f.discriminator, discriminator)) {
+                    return f.holder;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public JBoomerang.ResourceHolder<R> peek(Object discriminator, JBoomerang.Args args) {
+            for (Frame<R> f = this; f != null; f = f.parent) {
+                if (!Objects.equals(f.discriminator, discriminator)) {
+                    continue;
+                }
+                if (f.suspended) {
+                    return null;
+                }
+                if (f.holder != null && Objects.equals(f.holder.args, args)) {
+                    return f.holder;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public JBoomerang.ResourceHolder<R> peekCurrent() {
+            return peek(discriminator);
+        }
+
+        @Override
+        public int depth(Object discriminator) {
+            int count = 0;
+            for (Frame<R> f = this; f != null; f = f.parent) {
+                if (f.suspended && Objects.equals(f.discriminator, discriminator)) {
+                    break;
+                }
+                if (f.holder != null && Objects.equals(f.discriminator, discriminator)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int countDiscriminators() {
+            int count = 0;
+            for (Frame<R> f = this; f.parent != null; f = f.parent) {
+                if (!seenAbove(f)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private boolean seenAbove(Frame<R> frame) {
+            for (Frame<R> f = this; f != frame; f = f.parent) {
+                if (Objects.equals(f.discriminator, frame.discriminator)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int discriminatorDepth() {
+            return depth;
+        }
+
+        @Override
+        public List<Object> visibleDiscriminators() {
+            List<Object> discriminators = new ArrayList<>();
+            for (Frame<R> f = this; f.parent != null; f = f.parent) {
+                if (!seenAbove(f) && peek(f.discriminator) != null) {
+                    discriminators.add(0, f.discriminator);
+                }
+            }
+            return discriminators;
+        }
+
+        @Override
+        public JBoomerang.ResourceHolder<R> newHolder(R resource) {
+            return new JBoomerang.ResourceHolder<>(resource);
+        }
+    }
+
+    private static final class Invocation<R, V> implements Runnable {
+        private final JBoomerangFunction<R, V> fx;
+        private final JBoomerangConsumer<R>    consumer;
+        private final R                        resource;
+        private       V                        result;
+        private       Throwable                error;
+
+        Invocation(JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer, R resource) {
+            this.fx = fx;
+            this.consumer = consumer;
+            this.resource = resource;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = apply(fx, consumer, resource);
+            } catch (Throwable x) {//NOSONAR
+                error = x;
+            }
+        }
+
+        V getResult() {
+            if (error != null) {
+                ExceptionUtil.sneakyThrow(error);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.kayr.jboomerang;
+
+/**
+ * The default store, keeps a {@link ThreadState} in a thread local.
+ */
+final class ThreadLocalScopeStore<R> extends ScopeStore<R> {
+
+    private final ThreadLocal<ThreadState<R>> threadState = new ThreadLocal<>();
+    private boolean retainThreadState = false;
+
+    void setRetainThreadState(boolean retainThreadState) {
+        this.retainThreadState = retainThreadState;
+    }
+
+    @Override
+    ThreadState<R> current() {
+        return threadState.get();
+    }
+
+    @Override
+    Scope<R> enter(Scope<R> current, Object discriminator) {
+        ThreadState<R> state = (ThreadState<R>) current;
+        if (state == null) {
+            state = new ThreadState<>();
+            threadState.set(state);
+        }
+        state.enter(discriminator);
+        return state;
+    }
+
+    @Override
+    Scope<R> reenter(Scope<R> current) {
+        ((ThreadState<R>) current).reenter();
+        return current;
+    }
+
+    @Override
+    void exit(Scope<R> scope) {
+        ThreadState<R> state = (ThreadState<R>) scope;
+        state.exit();
+        mayBeClearThreadLocal(state);
+    }
+
+    @Override
+    <V> V call(Scope<R> scope, Object discriminator, JBoomerang.ResourceHolder<R> created,
+               JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer, R resource) throws Exception {
+        if (created != null) {
+            ((ThreadState<R>) scope).holders(discriminator).push(created);
+        }
+        return apply(fx, consumer, resource);
+    }
+
+    @Override
+    <V> V callSuspended(Scope<R> scope, Object discriminator,
+                        JBoomerangFunction<R, V> fx, JBoomerangConsumer<R> consumer) throws Exception {
+        ThreadState<R> state = (ThreadState<R>) scope;
+        ThreadState.HolderStack<R> suspended = state.detach(discriminator);
+        try {
+            return apply(fx, consumer, null);
+        } finally {
+            state.attach(discriminator, suspended);
+        }
+    }
+
+    @Override
+    void release(Scope<R> scope, Object discriminator, JBoomerang.ResourceHolder<R> holder) {
+        ThreadState<R> state = (ThreadState<R>) scope;
+        state.holders(discriminator).poll();
+        if (retainThreadState) {
+            state.recycle(holder);
+        }
+    }
+
+    private void mayBeClearThreadLocal(ThreadState<R> state) {
+        if (state.isIdle()) {
+            if (retainThreadState) {
+                state.clear();
+            } else {
+                threadState.remove();
+            }
+        }
+    }
+}
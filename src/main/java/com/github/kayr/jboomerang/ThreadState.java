@@ -0,0 +1,314 @@
+package com.github.kayr.jboomerang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Everything JBoomerang keeps per thread. When retained between outermost scopes the structures are cleared
+ * rather than discarded and released holders are recycled, so the steady state does not allocate.
+ * <p>
+ * The discriminators are kept in a plain array stack. {@link JBoomerang#COMMON_DISCRIMINATOR} has its own holder
+ * stack so the common case never hashes, other discriminators live in a small open addressed table.
+ */
+final class ThreadState<R> implements Scope<R> {
+
+    private static final int    MAX_RETAINED_DISCRIMINATORS = 64;
+    private static final int    MAX_FREE_HOLDERS            = 16;
+    private static final int    INITIAL_CAPACITY            = 8;
+    private static final Object NULL_KEY                    = new Object();
+
+    private Object[]         discriminatorStack = new Object[INITIAL_CAPACITY];
+    //the holder stack of each entered discriminator, saves a lookup for the current one
+    private HolderStack<R>[] enteredStacks      = newStacks(INITIAL_CAPACITY);
+    private int              discriminatorSize  = 0;
+
+    private final HolderStack<R> common = new HolderStack<>();
+
+    //open addressed with linear probing, entries are only removed by clear
+    private Object[]         keys   = new Object[INITIAL_CAPACITY];
+    private HolderStack<R>[] stacks = newStacks(INITIAL_CAPACITY);
+    private int              keyCount;
+
+    @SuppressWarnings("unchecked")
+    private final JBoomerang.ResourceHolder<R>[] freeHolders = (JBoomerang.ResourceHolder<R>[]) new JBoomerang.ResourceHolder<?>[MAX_FREE_HOLDERS];
+    private int freeCount = 0;
+
+    void enter(Object discriminator) {
+        if (discriminatorSize == discriminatorStack.length) {
+            discriminatorStack = Arrays.copyOf(discriminatorStack, discriminatorSize * 2);
+            enteredStacks = Arrays.copyOf(enteredStacks, discriminatorSize * 2);
+        }
+        HolderStack<R> stack = holders(discriminator);
+        stack.used = true;
+        discriminatorStack[discriminatorSize] = discriminator;
+        enteredStacks[discriminatorSize++] = stack;
+    }
+
+    /**
+     * Enters the current discriminator again, reusing the stack on top instead of looking it up.
+     */
+    void reenter() {
+        if (discriminatorSize == discriminatorStack.length) {
+            discriminatorStack = Arrays.copyOf(discriminatorStack, discriminatorSize * 2);
+            enteredStacks = Arrays.copyOf(enteredStacks, discriminatorSize * 2);
+        }
+        discriminatorStack[discriminatorSize] = discriminatorStack[discriminatorSize - 1];
+        enteredStacks[discriminatorSize] = enteredStacks[discriminatorSize - 1];
+        discriminatorSize++;
+    }
+
+    void exit() {
+        discriminatorStack[--discriminatorSize] = null;
+        enteredStacks[discriminatorSize] = null;
+    }
+
+    boolean isIdle() {
+        return discriminatorSize == 0;
+    }
+
+    HolderStack<R> holders(Object discriminator) {
+        if (discriminator == JBoomerang.COMMON_DISCRIMINATOR) {
+            return common;
+        }
+        Object key = discriminator == null ? NULL_KEY : discriminator;
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object k = keys[i];
+            if (k == null) {
+                return insert(key, i);
+            }
+            if (k == key || k.equals(key)) {
+                return stacks[i];
+            }
+        }
+    }
+
+    private HolderStack<R> find(Object discriminator) {
+        if (discriminator == JBoomerang.COMMON_DISCRIMINATOR) {
+            return common;
+        }
+        Object key = discriminator == null ? NULL_KEY : discriminator;
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object k = keys[i];
+            if (k == null) {
+                return null;
+            }
+            if (k == key || k.equals(key)) {
+                return stacks[i];
+            }
+        }
+    }
+
+    private HolderStack<R> insert(Object key, int index) {
+        if ((keyCount + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+            return holders(key == NULL_KEY ? null : key);
+        }
+        HolderStack<R> stack = new HolderStack<>();
+        keys[index] = key;
+        stacks[index] = stack;
+        keyCount++;
+        return stack;
+    }
+
+    private void resize(int capacity) {
+        Object[] oldKeys = keys;
+        HolderStack<R>[] oldStacks = stacks;
+        keys = new Object[capacity];
+        stacks = newStacks(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                stacks[i] = oldStacks[j];
+            }
+        }
+    }
+
+    /**
+     * Hides the holders of the discriminator until they are attached again. The stack itself stays in place as it
+     * may be referenced by entered scopes.
+     */
+    HolderStack<R> detach(Object discriminator) {
+        HolderStack<R> stack = holders(discriminator);
+        HolderStack<R> detached = new HolderStack<>();
+        detached.copyFrom(stack);
+        stack.clear();
+        return detached;
+    }
+
+    void attach(Object discriminator, HolderStack<R> detached) {
+        holders(discriminator).copyFrom(detached);
+    }
+
+    @Override
+    public Object currentDiscriminator() {
+        return discriminatorSize == 0 ? null : discriminatorStack[discriminatorSize - 1];
+    }
+
+    @Override
+    public JBoomerang.ResourceHolder<R> peek(Object discriminator) {
+        HolderStack<R> stack = find(discriminator);
+        return stack == null ? null : stack.peek();
+    }
+
+    @Override
+    public JBoomerang.ResourceHolder<R> peek(Object discriminator, JBoomerang.Args args) {
+        HolderStack<R> stack = find(discriminator);
+        return stack == null ? null : stack.find(args);
+    }
+
+    @Override
+    public JBoomerang.ResourceHolder<R> peekCurrent() {
+        return discriminatorSize == 0 ? null : enteredStacks[discriminatorSize - 1].peek();
+    }
+
+    @Override
+    public int depth(Object discriminator) {
+        HolderStack<R> stack = find(discriminator);
+        return stack == null ? 0 : stack.size;
+    }
+
+    @Override
+    public int countDiscriminators() {
+        int count = common.used ? 1 : 0;
+        for (HolderStack<R> stack : stacks) {
+            if (stack != null && stack.used) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int discriminatorDepth() {
+        return discriminatorSize;
+    }
+
+    @Override
+    public List<Object> visibleDiscriminators() {
+        List<Object> discriminators = new ArrayList<>();
+        for (int i = 0; i < discriminatorSize; i++) {
+            Object discriminator = discriminatorStack[i];
+            discriminators.remove(discriminator);
+            if (peek(discriminator) != null) {
+                discriminators.add(discriminator);
+            }
+        }
+        return discriminators;
+    }
+
+    @Override
+    public JBoomerang.ResourceHolder<R> newHolder(R resource) {
+        if (freeCount == 0) {
+            return new JBoomerang.ResourceHolder<>(resource);
+        }
+        JBoomerang.ResourceHolder<R> holder = freeHolders[--freeCount];
+        freeHolders[freeCount] = null;
+        holder.reset(resource);
+        return holder;
+    }
+
+    void recycle(JBoomerang.ResourceHolder<R> holder) {
+        //shared holders may still be referenced by other threads
+        if (!holder.isShared() && freeCount < MAX_FREE_HOLDERS) {
+            holder.reset(null);
+            freeHolders[freeCount++] = holder;
+        }
+    }
+
+    /**
+     * Prepares the state for the next outermost scope on this thread.
+     */
+    void clear() {
+        Arrays.fill(discriminatorStack, 0, discriminatorSize, null);
+        Arrays.fill(enteredStacks, 0, discriminatorSize, null);
+        discriminatorSize = 0;
+        common.clear();
+        common.used = false;
+        if (keyCount > MAX_RETAINED_DISCRIMINATORS) {
+            keys = new Object[INITIAL_CAPACITY];
+            stacks = newStacks(INITIAL_CAPACITY);
+            keyCount = 0;
+            return;
+        }
+        for (HolderStack<R> stack : stacks) {
+            if (stack != null) {
+                stack.clear();
+                stack.used = false;
+            }
+        }
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> HolderStack<R>[] newStacks(int capacity) {
+        return (HolderStack<R>[]) new HolderStack<?>[capacity];
+    }
+
+    /**
+     * The holders of one discriminator, innermost last.
+     */
+    static final class HolderStack<R> {
+        private JBoomerang.ResourceHolder<R>[] holders = newHolders(4);
+        private int                            size;
+        private boolean                        used;
+
+        void push(JBoomerang.ResourceHolder<R> holder) {
+            if (size == holders.length) {
+                holders = Arrays.copyOf(holders, size * 2);
+            }
+            holders[size++] = holder;
+        }
+
+        JBoomerang.ResourceHolder<R> peek() {
+            return size == 0 ? null : holders[size - 1];
+        }
+
+        JBoomerang.ResourceHolder<R> find(JBoomerang.Args args) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (Objects.equals(holders[i].args, args)) {
+                    return holders[i];
+                }
+            }
+            return null;
+        }
+
+        JBoomerang.ResourceHolder<R> poll() {
+            if (size == 0) {
+                return null;
+            }
+            JBoomerang.ResourceHolder<R> holder = holders[--size];
+            holders[size] = null;
+            return holder;
+        }
+
+        void clear() {
+            Arrays.fill(holders, 0, size, null);
+            size = 0;
+        }
+
+        private void copyFrom(HolderStack<R> other) {
+            clear();
+            for (int i = 0; i < other.size; i++) {
+                push(other.holders[i]);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <R> JBoomerang.ResourceHolder<R>[] newHolders(int capacity) {
+            return (JBoomerang.ResourceHolder<R>[]) new JBoomerang.ResourceHolder<?>[capacity];
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.kayr.jboomerang;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The {@code jdk.jfr} backed {@link ResourceEvents}, only loaded when the JVM has it. It is compiled for Java 11 into
+ * the multi-release part of the jar, so older JVMs never see it. The events are enabled and their thresholds changed
+ * like any other event, e.g. {@code jboomerang.Scope#threshold=0 ms} in a .jfc file.
+ * <p>
+ * Disabled events are checked on the event type before an event object is allocated, so they cost a field read.
+ */
+final class FlightRecorderEvents extends ResourceEvents {
+
+    private static final EventType SCOPE  = EventType.getEventType(ScopeEvent.class);
+    private static final EventType CREATE = EventType.getEventType(CreateEvent.class);
+    private static final EventType CLOSE  = EventType.getEventType(CloseEvent.class);
+
+    @Override
+    Object beginScope() {
+        if (!SCOPE.isEnabled()) {
+            return null;
+        }
+        ScopeEvent event = new ScopeEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commitScope(Object event, Object discriminator, JBoomerang.Propagation propagation, int depth, int holders) {
+        ScopeEvent e = (ScopeEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.discriminator = String.valueOf(discriminator);
+            e.propagation = propagation.name();
+            e.depth = depth;
+            e.holders = holders;
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginCreate() {
+        if (!CREATE.isEnabled()) {
+            return null;
+        }
+        CreateEvent event = new CreateEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commitCreate(Object event, Object discriminator, JBoomerang.Propagation propagation, Scope<?> scope) {
+        CreateEvent e = (CreateEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.discriminator = String.valueOf(discriminator);
+            e.propagation = propagation.name();
+            e.depth = scope == null ? 0 : scope.discriminatorDepth();
+            e.holders = scope == null ? 0 : scope.depth(discriminator);
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginClose() {
+        if (!CLOSE.isEnabled()) {
+            return null;
+        }
+        CloseEvent event = new CloseEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commitClose(Object event, Object discriminator, Scope<?> scope) {
+        CloseEvent e = (CloseEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.discriminator = String.valueOf(discriminator);
+            e.depth = scope == null ? 0 : scope.discriminatorDepth();
+            e.holders = scope == null ? 0 : scope.depth(discriminator);
+            e.commit();
+        }
+    }
+
+    @Name("jboomerang.Scope")
+    @Label("Resource Scope")
+    @Description("A withResource call, from entering the scope until the resource is closed or released")
+    @Category("JBoomerang")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class ScopeEvent extends Event {
+        @Label("Discriminator")
+        String discriminator;
+
+        @Label("Propagation")
+        String propagation;
+
+        @Label("Depth")
+        @Description("Scopes already open on the thread")
+        int depth;
+
+        @Label("Holders")
+        @Description("Resources already open for the discriminator")
+        int holders;
+    }
+
+    @Name("jboomerang.Create")
+    @Label("Resource Create")
+    @Category("JBoomerang")
+    @Threshold("1 ms")
+    static class CreateEvent extends Event {
+        @Label("Discriminator")
+        String discriminator;
+
+        @Label("Propagation")
+        String propagation;
+
+        @Label("Depth")
+        @Description("Scopes open on the thread")
+        int depth;
+
+        @Label("Holders")
+        @Description("Resources already open for the discriminator")
+        int holders;
+    }
+
+    @Name("jboomerang.Close")
+    @Label("Resource Close")
+    @Category("JBoomerang")
+    @Threshold("1 ms")
+    static class CloseEvent extends Event {
+        @Label("Discriminator")
+        String discriminator;
+
+        @Label("Depth")
+        @Description("Scopes open on the closing thread, zero when closed in the background")
+        int depth;
+
+        @Label("Holders")
+        @Description("Resources open for the discriminator on the closing thread")
+        int holders;
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Args;
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+
+    private final CountingFactory<Object> factory = CountingFactory.ofObjects();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private JBoomerang<Object> newBoomerang(AdmissionControl admission) {
+        return new JBoomerang<>(factory).limitOpenResources(admission);
+    }
+
+    @Test
+    public void limitsConcurrentResourcesPerDiscriminator() throws Exception {
+        JBoomerang<Object> rm = newBoomerang(AdmissionControl.builder().maxOpenPerDiscriminator(2).build());
+
+        Future<?>[] futures = new Future<?>[16];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = executor.submit(() -> rm.consume("db", Propagation.JOIN, r -> Thread.sleep(5)));
+        }
+        for (Future<?> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(16, factory.opens.get());
+        assertTrue("max open was " + factory.maxOpen.get(), factory.maxOpen.get() <= 2);
+    }
+
+    @Test
+    public void joinDoesNotTakeAPermit() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen("db", 1).maxWait(Duration.ZERO).build();
+        JBoomerang<Object> rm = newBoomerang(admission);
+
+        rm.consume("db", Propagation.JOIN, r -> {
+            assertEquals(0, admission.availablePermits("db"));
+            rm.consume("db", Propagation.JOIN, r2 -> rm.consume("db", Propagation.REQUIRED, r3 -> assertSame(r, r3)));
+        });
+        assertEquals(1, admission.availablePermits("db"));
+        assertEquals(Integer.MAX_VALUE, admission.availablePermits("other"));
+    }
+
+    @Test
+    public void limitsTheNullDiscriminator() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen(null, 1).maxWait(Duration.ZERO).build();
+        JBoomerang<Object> rm = newBoomerang(admission);
+
+        rm.consume(null, Propagation.JOIN, r -> assertEquals(0, admission.availablePermits(null)));
+        assertEquals(1, admission.availablePermits(null));
+        assertEquals(1, factory.opens.get());
+    }
+
+    @Test
+    public void timesOutWhenNoPermitIsReleased() throws Exception {
+        ResourceMetrics metrics = new ResourceMetrics();
+        AdmissionControl admission = AdmissionControl.builder().maxOpen(1).maxWait(Duration.ofMillis(50)).build();
+        JBoomerang<Object> rm = newBoomerang(admission).addListener(metrics);
+
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> holder = executor.submit(() -> rm.consume("a", Propagation.JOIN, r -> {
+            holding.countDown();
+            release.await();
+        }));
+        assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+        try {
+            rm.consume("b", Propagation.JOIN, r -> fail());
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("timed out waiting to open a resource for [b]", x.getMessage());
+        }
+        release.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+
+        ResourceMetrics.Stats b = metrics.get("b");
+        assertEquals(1, b.getAdmissionRejections());
+        assertTrue(b.getAdmissionWait().getMax() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, metrics.get("a").getAdmissionWait().getCount());
+        assertEquals(1, admission.availablePermits());
+    }
+
+    @Test
+    public void zeroWaitFailsFastAndTryAcquireDoesNotBlock() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen("db", 1).maxWait(Duration.ZERO).build();
+        JBoomerang<Object> rm = newBoomerang(admission);
+
+        rm.consume("db", Propagation.JOIN, r -> {
+            assertFalse(admission.tryAcquire("db"));
+            try {
+                rm.consume("db", Propagation.WITH_NEW, r2 -> fail());
+                fail();
+            } catch (IllegalStateException x) {
+                assertTrue(x.getMessage().startsWith("timed out"));
+            }
+        });
+        assertTrue(admission.tryAcquire("db"));
+        admission.release("db");
+    }
+
+    @Test
+    public void permitIsReturnedWhenCreateFails() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen(1).maxOpen("db", 1).build();
+        JBoomerang<Object> rm = newBoomerang(admission);
+        factory.failCreate = true;
+
+        try {
+            rm.consume("db", Propagation.JOIN, r -> fail());
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("create failed", x.getMessage());
+        }
+        assertEquals(1, admission.availablePermits());
+        assertEquals(1, admission.availablePermits("db"));
+    }
+
+    @Test
+    public void lazyResourceOnlyTakesAPermitWhenCreated() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen(1).build();
+        JBoomerang<Object> rm = newBoomerang(admission);
+
+        rm.withLazyResource("db", Propagation.JOIN, Args.none(), h -> {
+            assertEquals(1, admission.availablePermits());
+            h.get();
+            assertEquals(0, admission.availablePermits());
+            return null;
+        });
+        assertEquals(1, admission.availablePermits());
+    }
+}
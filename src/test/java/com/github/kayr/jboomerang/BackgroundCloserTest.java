@@ -0,0 +1,172 @@
+package com.github.kayr.jboomerang;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BackgroundCloserTest {
+
+    private final AtomicInteger     closes       = new AtomicInteger();
+    private final AtomicInteger     exceptions   = new AtomicInteger();
+    private final List<Thread>      closeThreads = new CopyOnWriteArrayList<>();
+    private final CountDownLatch    release      = new CountDownLatch(1);
+    private final CountDownLatch    blocked      = new CountDownLatch(1);
+    private final List<Throwable>   failures     = new CopyOnWriteArrayList<>();
+    private       boolean           deferrable   = true;
+    private volatile boolean        blockClose   = false;
+    private       boolean           failClose    = false;
+
+    private final BackgroundCloser closer = BackgroundCloser.builder()
+                                                            .queueCapacity(1)
+                                                            .onFailure((d, x) -> failures.add(x))
+                                                            .build();
+
+    private final JBoomerang<Object> rm = new JBoomerang<>(new SlowFactory()).closeInBackground(closer);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        closer.close();
+    }
+
+    @Test
+    public void closeRunsOnTheCloserThread() {
+        rm.consume(r -> {
+        });
+        closer.close();
+
+        assertEquals(1, closes.get());
+        assertEquals(1, closeThreads.size());
+        assertNotSame(Thread.currentThread(), closeThreads.get(0));
+        assertTrue(closeThreads.get(0).getName().startsWith("jboomerang-closer"));
+    }
+
+    @Test
+    public void factoriesThatDoNotAllowItCloseOnTheCaller() {
+        deferrable = false;
+        rm.consume(r -> {
+        });
+
+        assertEquals(1, closes.get());
+        assertSame(Thread.currentThread(), closeThreads.get(0));
+    }
+
+    @Test
+    public void scopeReturnsBeforeTheCloseCompletes() {
+        blockClose = true;
+        rm.consume(r -> {
+        });
+
+        assertEquals(0, closes.get());
+        release.countDown();
+        closer.close();
+        assertEquals(1, closes.get());
+    }
+
+    @Test
+    public void fullQueueClosesOnTheCaller() throws InterruptedException {
+        blockClose = true;
+        rm.consume(r -> {
+        });//taken by the closer thread
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        rm.consume(r -> {
+        });//queued
+
+        blockClose = false;
+        rm.consume(r -> {
+        });//queue is full
+
+        assertEquals(1, closer.countCallerRuns());
+        assertEquals(1, closes.get());
+        assertSame(Thread.currentThread(), closeThreads.get(0));
+
+        release.countDown();
+        closer.close();
+        assertEquals(3, closes.get());
+    }
+
+    @Test
+    public void failuresGoToTheHandler() {
+        failClose = true;
+        rm.consume(r -> {
+        });
+        closer.close();
+
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof BoomerangCloseException);
+        assertEquals("close failed", failures.get(0).getCause().getMessage());
+    }
+
+    @Test
+    public void onExceptionRunsBeforeTheClose() {
+        try {
+            rm.consume(r -> {
+                throw new IllegalStateException("boom");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("boom", x.getMessage());
+        }
+        closer.close();
+
+        assertEquals(1, exceptions.get());
+        assertEquals(1, closes.get());
+    }
+
+    @Test
+    public void admissionPermitIsHeldUntilTheResourceIsClosed() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen(1).build();
+        rm.limitOpenResources(admission);
+        blockClose = true;
+
+        rm.consume(r -> {
+        });
+        assertEquals(0, admission.availablePermits());
+
+        release.countDown();
+        closer.close();
+        assertEquals(1, admission.availablePermits());
+    }
+
+    class SlowFactory implements JBoomerang.ResourceFactory<Object> {
+
+        @Override
+        public Object create(Object discriminator, JBoomerang.Args args) {
+            return new Object();
+        }
+
+        @Override
+        public void close(Object discriminator, Object resource) {
+            if (blockClose && Thread.currentThread().getName().startsWith("jboomerang-closer")) {
+                try {
+                    blocked.countDown();
+                    release.await();
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            closeThreads.add(Thread.currentThread());
+            closes.incrementAndGet();
+            if (failClose) {
+                throw new IllegalStateException("close failed");
+            }
+        }
+
+        @Override
+        public void onException(Object discriminator, Object resource) {
+            exceptions.incrementAndGet();
+        }
+
+        @Override
+        public boolean isCloseDeferrable(Object discriminator) {
+            return deferrable;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.kayr.jboomerang;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BatchingResourceFactoryTest {
+
+    private final List<List<Object>>  batches  = new CopyOnWriteArrayList<>();
+    private final AtomicInteger       created  = new AtomicInteger();
+    private volatile boolean          failNext = false;
+    private volatile RuntimeException failWith;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentClosesShareOneBatch() throws Exception {
+        JBoomerang<Object> rm = new JBoomerang<>(new RecordingFactory()).batchCloses(4, Duration.ofSeconds(5));
+
+        List<Future<?>> futures = closeConcurrently(rm, 4);
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, batches.size());
+        assertEquals(4, batches.get(0).size());
+    }
+
+    @Test
+    public void loneCloseWaitsOnlyForTheWindow() {
+        JBoomerang<Object> rm = new JBoomerang<>(new RecordingFactory()).batchCloses(100, Duration.ofMillis(10));
+
+        rm.consume(r -> {
+        });
+        rm.consume(r -> {
+        });
+
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(0).size());
+    }
+
+    @Test
+    public void batchFailureFailsEveryScopeInIt() throws Exception {
+        JBoomerang<Object> rm = new JBoomerang<>(new RecordingFactory()).batchCloses(3, Duration.ofSeconds(5));
+        failNext = true;
+
+        int failures = 0;
+        for (Future<?> future : closeConcurrently(rm, 3)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (Exception x) {
+                assertTrue(x.getCause() instanceof BoomerangCloseException);
+                assertEquals("flush failed", x.getCause().getCause().getMessage());
+                failures++;
+            }
+        }
+        assertEquals(3, failures);
+    }
+
+    @Test
+    public void everyScopeGetsItsOwnCloseException() throws Exception {
+        JBoomerang<Object> rm = new JBoomerang<>(new RecordingFactory()).batchCloses(3, Duration.ofSeconds(5));
+        failNext = true;
+        failWith = new BoomerangCloseException("flush failed");
+
+        Set<Throwable> thrown = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Future<?> future : closeConcurrently(rm, 3)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException x) {
+                assertSame(failWith, x.getCause().getCause());
+                thrown.add(x.getCause());
+            }
+        }
+        assertEquals(3, thrown.size());
+        assertEquals(0, failWith.getSuppressed().length);
+    }
+
+    @Test
+    public void discriminatorsAreBatchedSeparately() throws Exception {
+        JBoomerang<Object> rm = new JBoomerang<>(new RecordingFactory()).batchCloses(2, Duration.ofSeconds(5));
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (String d : new String[]{"a", "b", "a", "b"}) {
+            futures.add(executor.submit(() -> rm.withResource(d, JBoomerang.Propagation.JOIN, JBoomerang.Args.none(), r -> null)));
+        }
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(2, batches.get(1).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchingNeedsABatchingFactory() {
+        new JBoomerang<>(new JBoomerang.ResourceFactory<Object>() {
+            @Override
+            public Object create(Object discriminator, JBoomerang.Args args) {
+                return new Object();
+            }
+
+            @Override
+            public void close(Object discriminator, Object resource) {
+            }
+
+            @Override
+            public void onException(Object discriminator, Object resource) {
+            }
+        }).batchCloses(2, Duration.ofMillis(1));
+    }
+
+    private List<Future<?>> closeConcurrently(JBoomerang<Object> rm, int threads) throws InterruptedException {
+        CountDownLatch opened = new CountDownLatch(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> rm.consume(r -> {
+                opened.countDown();
+                opened.await();
+            })));
+        }
+        return futures;
+    }
+
+    class RecordingFactory implements BatchingResourceFactory<Object> {
+
+        @Override
+        public Object create(Object discriminator, JBoomerang.Args args) {
+            return created.incrementAndGet();
+        }
+
+        @Override
+        public void closeAll(Object discriminator, List<Object> resources) {
+            batches.add(new ArrayList<>(resources));
+            if (failNext) {
+                failNext = false;
+                throw failWith != null ? failWith : new IllegalStateException("flush failed");
+            }
+        }
+
+        @Override
+        public void onException(Object discriminator, Object resource) {
+        }
+    }
+}
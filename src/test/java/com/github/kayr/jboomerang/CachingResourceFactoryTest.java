@@ -0,0 +1,161 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Args;
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class CachingResourceFactoryTest {
+
+    private final List<String> closed = new ArrayList<>();
+    private int created = 0;
+
+    private final TenantFactory delegate = new TenantFactory();
+
+    @Test
+    public void resourceIsReusedForEqualArgsOnly() {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+
+        Tenant a = rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t);
+        Tenant b = rm.withResource("db", Propagation.JOIN, Args.of("b"), t -> t);
+        assertSame(a, rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t));
+        assertSame(b, rm.withResource("db", Propagation.JOIN, Args.of("b"), t -> t));
+
+        assertEquals(2, created);
+        assertEquals(2, cache.countIdle());
+        assertTrue(closed.isEmpty());
+    }
+
+    @Test
+    public void cachedResourcesAreSharedAcrossThreads() throws Exception {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+
+        Tenant a = rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t);
+        Tenant other = CompletableFuture.supplyAsync(() -> rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t)).get();
+
+        assertSame(a, other);
+    }
+
+    @Test
+    public void leastRecentlyUsedTenantIsEvicted() {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).maxIdle(2).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+
+        rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t);
+        rm.withResource("db", Propagation.JOIN, Args.of("b"), t -> t);
+        rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t);
+        rm.withResource("db", Propagation.JOIN, Args.of("c"), t -> t);
+
+        assertEquals("[b]", closed.toString());
+        assertEquals(1, cache.countIdle("db", Args.of("a")));
+        assertEquals(0, cache.countIdle("db", Args.of("b")));
+        assertEquals(1, cache.countIdle("db", Args.of("c")));
+    }
+
+    @Test
+    public void maxIdlePerKeyBoundsEachTenant() {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).maxIdlePerKey(1).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+
+        rm.withResource("db", Propagation.JOIN, Args.of("a"), outer ->
+                rm.withResource("db", Propagation.WITH_NEW, Args.of("a"), inner -> inner));
+
+        assertEquals(1, closed.size());
+        assertEquals(1, cache.countIdle());
+    }
+
+    @Test
+    public void expiredResourcesAreClosed() throws InterruptedException {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).maxIdleTime(Duration.ofMillis(1)).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+
+        Tenant a = rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t);
+        Thread.sleep(5);
+        assertNotSame(a, rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t));
+        assertEquals("[a]", closed.toString());
+
+        Thread.sleep(5);
+        cache.evictExpired();
+        assertEquals("[a, a]", closed.toString());
+        assertEquals(0, cache.countIdle());
+    }
+
+    @Test
+    public void failedResourcesAreNotCached() {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+
+        try {
+            rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> {
+                throw new IllegalStateException();
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            //expected
+        }
+
+        assertEquals("[a]", closed.toString());
+        assertEquals(0, cache.countIdle());
+    }
+
+    @Test
+    public void closeClosesIdleResources() {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+        rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> t);
+        rm.withResource("db", Propagation.JOIN, Args.of("b"), t -> t);
+
+        cache.close();
+
+        assertEquals(2, closed.size());
+        assertEquals(0, cache.countIdle());
+    }
+
+    @Test
+    public void resourceReturnedAfterCloseIsClosed() {
+        CachingResourceFactory<Tenant> cache = CachingResourceFactory.builder(delegate).build();
+        JBoomerang<Tenant> rm = new JBoomerang<>(cache);
+
+        rm.withResource("db", Propagation.JOIN, Args.of("a"), t -> {
+            cache.close();
+            return t;
+        });
+
+        assertEquals("[a]", closed.toString());
+        assertEquals(0, cache.countIdle());
+    }
+
+    static class Tenant {
+        final String name;
+
+        Tenant(String name) {
+            this.name = name;
+        }
+    }
+
+    class TenantFactory implements JBoomerang.ResourceFactory<Tenant> {
+
+        @Override
+        public Tenant create(Object discriminator, Args args) {
+            created++;
+            return new Tenant(args.get(0));
+        }
+
+        @Override
+        public void close(Object discriminator, Tenant resource) {
+            closed.add(resource.name);
+        }
+
+        @Override
+        public void onException(Object discriminator, Tenant resource) {
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.github.kayr.jboomerang;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private final AtomicInteger creates = new AtomicInteger();
+    private final AtomicInteger closes  = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean failing = false;
+    private volatile boolean slow    = false;
+
+    private final JBoomerang.ResourceFactory<Object> factory = new JBoomerang.ResourceFactory<Object>() {
+        @Override
+        public Object create(Object discriminator, JBoomerang.Args args) {
+            creates.incrementAndGet();
+            if (slow) {
+                try {
+                    release.await();
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new IllegalStateException("backend down");
+            }
+            return new Object();
+        }
+
+        @Override
+        public void close(Object discriminator, Object resource) {
+            closes.incrementAndGet();
+        }
+
+        @Override
+        public void onException(Object discriminator, Object resource) {
+        }
+    };
+
+    @Test
+    public void circuitOpensAfterTheFailureRateAndFailsFast() {
+        CircuitBreaker breaker = CircuitBreaker.builder().minimumCalls(4).failureRateThreshold(0.5).openDuration(Duration.ofMinutes(1)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+
+        rm.consume(r -> {
+        });
+        rm.consume(r -> {
+        });
+        failing = true;
+        assertCreateFails(rm, "backend down");
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(JBoomerang.COMMON_DISCRIMINATOR));
+        assertCreateFails(rm, "backend down");
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(JBoomerang.COMMON_DISCRIMINATOR));
+        assertCreateFails(rm, "circuit is open");
+        assertEquals(4, creates.get());
+        assertEquals(1, breaker.countRejections(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void halfOpenProbeClosesTheCircuit() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.builder().minimumCalls(1).openDuration(Duration.ofMillis(10)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+
+        failing = true;
+        assertCreateFails(rm, "backend down");
+        assertCreateFails(rm, "circuit is open");
+
+        Thread.sleep(20);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(JBoomerang.COMMON_DISCRIMINATOR));
+        failing = false;
+        rm.consume(r -> {
+        });
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void failedProbeOpensTheCircuitAgain() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.builder().minimumCalls(1).openDuration(Duration.ofMillis(10)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+
+        failing = true;
+        assertCreateFails(rm, "backend down");
+        Thread.sleep(20);
+        assertCreateFails(rm, "backend down");
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(JBoomerang.COMMON_DISCRIMINATOR));
+        assertCreateFails(rm, "circuit is open");
+    }
+
+    @Test
+    public void discriminatorsHaveTheirOwnCircuit() {
+        CircuitBreaker breaker = CircuitBreaker.builder().minimumCalls(1).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+
+        failing = true;
+        assertCreateFails(rm, "backend down");
+        failing = false;
+        rm.consume("other", JBoomerang.Propagation.JOIN, r -> {
+        });
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("other"));
+    }
+
+    @Test
+    public void createTimeoutFailsTheCallerAndClosesTheLateResource() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.builder().createTimeout("slow", Duration.ofMillis(20)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+        slow = true;
+
+        long start = System.nanoTime();
+        try {
+            rm.consume("slow", JBoomerang.Propagation.JOIN, r -> fail());
+            fail();
+        } catch (IllegalStateException x) {
+            assertTrue(x.getMessage(), x.getMessage().startsWith("timed out creating a resource for [slow]"));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (closes.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, closes.get());
+    }
+
+    @Test
+    public void createFailureWithinTheDeadlineIsRethrown() {
+        CircuitBreaker breaker = CircuitBreaker.builder().createTimeout(Duration.ofSeconds(5)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+        failing = true;
+
+        assertCreateFails(rm, "backend down");
+    }
+
+    @Test
+    public void rejectedCreateReturnsTheAdmissionPermit() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen(1).build();
+        CircuitBreaker breaker = CircuitBreaker.builder().minimumCalls(1).openDuration(Duration.ofMinutes(1)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker).limitOpenResources(admission);
+
+        failing = true;
+        assertCreateFails(rm, "backend down");
+        assertCreateFails(rm, "circuit is open");
+        assertEquals(1, admission.availablePermits());
+    }
+
+    @Test
+    public void createsAdmittedBeforeTheCircuitOpenedAreNotProbes() throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.builder().minimumCalls(1).halfOpenProbes(2).openDuration(Duration.ofMillis(10)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+
+        slow = true;
+        Thread stale = new Thread(() -> rm.consume(r -> {
+        }));
+        stale.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (creates.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        slow = false;
+        failing = true;
+        assertCreateFails(rm, "backend down");
+
+        Thread.sleep(20);
+        failing = false;
+        rm.consume(r -> {
+        });
+        release.countDown();
+        stale.join();
+
+        assertEquals("one of two probes succeeded", CircuitBreaker.State.HALF_OPEN, breaker.getState(JBoomerang.COMMON_DISCRIMINATOR));
+        rm.consume(r -> {
+        });
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void createsFailAtOnceWhenEveryCreateThreadIsStuck() {
+        CircuitBreaker breaker = CircuitBreaker.builder().createThreads(1).minimumCalls(100).createTimeout(Duration.ofMillis(20)).build();
+        JBoomerang<Object> rm = new JBoomerang<>(factory).protectCreate(breaker);
+        slow = true;
+        try {
+            assertCreateFails(rm, "timed out creating a resource");
+            assertCreateFails(rm, "no thread free to create a resource");
+            assertEquals(1, creates.get());
+        } finally {
+            breaker.close();
+        }
+    }
+
+    private static void assertCreateFails(JBoomerang<Object> rm, String message) {
+        try {
+            rm.consume(r -> fail());
+            fail();
+        } catch (IllegalStateException x) {
+            assertTrue(x.getMessage(), x.getMessage().startsWith(message));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.kayr.jboomerang;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CloseFailurePolicyTest {
+
+    private final AtomicInteger closes = new AtomicInteger();
+    private boolean failClose       = true;
+    private boolean failOnException = false;
+
+    private final JBoomerang.ResourceFactory<Object> factory = new JBoomerang.ResourceFactory<Object>() {
+        @Override
+        public Object create(Object discriminator, JBoomerang.Args args) {
+            return new Object();
+        }
+
+        @Override
+        public void close(Object discriminator, Object resource) {
+            closes.incrementAndGet();
+            if (failClose) {
+                throw new IllegalStateException("close failed");
+            }
+        }
+
+        @Override
+        public void onException(Object discriminator, Object resource) {
+            if (failOnException) {
+                throw new IllegalArgumentException("rollback failed");
+            }
+        }
+    };
+
+    @Test
+    public void closeExceptionsAreStacklessUnlessSampled() {
+        JBoomerang<Object> rm = new JBoomerang<>(factory).closeFailures(CloseFailurePolicy.builder().stackTraceSampleRate(0).build());
+
+        BoomerangCloseException x = closeFailure(rm);
+        assertEquals(0, x.getStackTrace().length);
+        assertEquals("close failed", x.getCause().getMessage());
+        assertTrue(x.getCause().getStackTrace().length > 0);
+
+        rm.closeFailures(CloseFailurePolicy.builder().stackTraceSampleRate(1).build());
+        assertTrue(closeFailure(rm).getStackTrace().length > 0);
+    }
+
+    @Test
+    public void withoutAPolicyCloseExceptionsHaveAStackTrace() {
+        JBoomerang<Object> rm = new JBoomerang<>(factory);
+        BoomerangCloseException x = closeFailure(rm);
+        assertTrue(x.getStackTrace().length > 0);
+        assertEquals(1, x.getFailures().size());
+    }
+
+    @Test
+    public void cleanupFailuresAreAggregated() {
+        failOnException = true;
+        JBoomerang<Object> rm = new JBoomerang<>(factory).closeFailures(CloseFailurePolicy.builder().build());
+
+        IllegalStateException error = workFailure(rm);
+
+        assertEquals(1, error.getSuppressed().length);
+        BoomerangCloseException cleanup = (BoomerangCloseException) error.getSuppressed()[0];
+        assertEquals(2, cleanup.getFailures().size());
+        assertEquals("rollback failed", cleanup.getFailures().get(0).getMessage());
+        assertEquals("close failed", cleanup.getFailures().get(1).getMessage());
+        assertSame(cleanup.getFailures().get(0), cleanup.getCause());
+        assertEquals("the resource is closed although onException failed", 1, closes.get());
+    }
+
+    @Test
+    public void nothingIsSuppressedWhenTheCleanupSucceeds() {
+        failClose = false;
+        JBoomerang<Object> rm = new JBoomerang<>(factory).closeFailures(CloseFailurePolicy.builder().build());
+
+        assertEquals(0, workFailure(rm).getSuppressed().length);
+        assertEquals(1, closes.get());
+    }
+
+    @Test
+    public void withoutAggregationCloseFailuresAreSuppressedOneByOne() {
+        JBoomerang<Object> rm = new JBoomerang<>(factory).closeFailures(CloseFailurePolicy.builder().aggregate(false).build());
+
+        IllegalStateException error = workFailure(rm);
+
+        BoomerangCloseException suppressed = (BoomerangCloseException) error.getSuppressed()[0];
+        assertEquals("close failed", suppressed.getCause().getMessage());
+    }
+
+    private static BoomerangCloseException closeFailure(JBoomerang<Object> rm) {
+        try {
+            rm.consume(r -> {
+            });
+            fail();
+            return null;
+        } catch (BoomerangCloseException x) {
+            return x;
+        }
+    }
+
+    private static IllegalStateException workFailure(JBoomerang<Object> rm) {
+        try {
+            rm.consume(r -> {
+                throw new IllegalStateException("work failed");
+            });
+            fail();
+            return null;
+        } catch (IllegalStateException x) {
+            assertEquals("work failed", x.getMessage());
+            return x;
+        }
+    }
+
+    @Test
+    public void closeExceptionWithoutACauseHasNoFailures() {
+        assertTrue(new BoomerangCloseException("failed", null, factory).getFailures().isEmpty());
+    }
+
+    @Test
+    public void failuresSurviveSerialization() throws Exception {
+        failOnException = true;
+        JBoomerang<Object> rm = new JBoomerang<>(factory).closeFailures(CloseFailurePolicy.builder().build());
+        BoomerangCloseException aggregated = (BoomerangCloseException) workFailure(rm).getSuppressed()[0];
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(aggregated);
+        }
+        BoomerangCloseException copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (BoomerangCloseException) in.readObject();
+        }
+
+        assertEquals(2, copy.getFailures().size());
+        assertEquals("rollback failed", copy.getFailures().get(0).getMessage());
+        assertEquals("close failed", copy.getFailures().get(1).getMessage());
+    }
+}
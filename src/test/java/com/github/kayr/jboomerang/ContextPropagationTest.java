@@ -0,0 +1,237 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ContextPropagationTest {
+
+    private final CountingFactory<Res> factory = new CountingFactory<>(Res::new);
+
+    private JBoomerang<Res>  rm;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        rm = new JBoomerang<>(factory);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void tasksJoinTheSubmittersResource() throws Exception {
+        ExecutorService wrapped = rm.wrapExecutorService(executor);
+
+        rm.consume(parent -> {
+            List<Future<Res>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(wrapped.submit(() -> rm.withResource(r -> {
+                    assertEquals(1, rm.countOpenResources());
+                    return r;
+                })));
+            }
+            for (Future<Res> future : futures) {
+                assertSame(parent, future.get());
+            }
+        });
+
+        factory.assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void resourceIsClosedByTheLastTask() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Executor wrapped = rm.wrapExecutor(executor);
+        CompletableFuture<Res> done = new CompletableFuture<>();
+
+        rm.consume(parent -> wrapped.execute(() -> {
+            try {
+                release.await();
+                done.complete(rm.withResource(r -> r));
+            } catch (Throwable x) {
+                done.completeExceptionally(x);
+            }
+        }));
+
+        //the submitting scope has completed but the task still holds the resource
+        factory.assertOpensClosesExceptions(1, 0, 0);
+        release.countDown();
+        assertNotNull(done.get(5, TimeUnit.SECONDS));
+        waitFor(() -> factory.closes.get() == 1);
+        factory.assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void onExceptionIsDeferredToTheLastTask() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?>[] task = new Future<?>[1];
+
+        try {
+            rm.consume(parent -> {
+                task[0] = rm.wrapExecutorService(executor).submit(() -> {
+                    release.await();
+                    return null;
+                });
+                throw new IllegalStateException("work failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("work failed", x.getMessage());
+        }
+
+        factory.assertOpensClosesExceptions(1, 0, 0);
+        release.countDown();
+        task[0].get(5, TimeUnit.SECONDS);
+        waitFor(() -> factory.closes.get() == 1);
+        factory.assertOpensClosesExceptions(1, 1, 1);
+    }
+
+    @Test
+    public void tasksCanOpenTheirOwnResources() throws Exception {
+        ExecutorService wrapped = rm.wrapExecutorService(executor);
+
+        rm.consume(parent -> {
+            Res child = wrapped.submit(() -> rm.withResource(Propagation.WITH_NEW, r -> {
+                assertEquals(2, rm.countOpenResources());
+                return r;
+            })).get();
+            assertNotSame(parent, child);
+        });
+
+        factory.assertOpensClosesExceptions(2, 2, 0);
+    }
+
+    @Test
+    public void allDiscriminatorsArePropagated() throws Exception {
+        rm.consume(common -> rm.consume("other", Propagation.JOIN, other -> {
+            CompletableFuture<Object[]> future = rm.supplyAsync(() -> new Object[]{
+                    rm.currentDiscriminatorNotNull(),
+                    rm.getCurrentResource(JBoomerang.COMMON_DISCRIMINATOR).orElse(null),
+                    rm.getCurrentResource("other").orElse(null)
+            }, executor);
+            Object[] seen = future.get();
+            assertEquals("other", seen[0]);
+            assertSame(common, seen[1]);
+            assertSame(other, seen[2]);
+        }));
+
+        factory.assertOpensClosesExceptions(2, 2, 0);
+    }
+
+    @Test
+    public void cancelledTaskReleasesTheResource() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            ExecutorService wrapped = rm.wrapExecutorService(single);
+            rm.consume(parent -> {
+                single.submit(() -> {
+                    release.await();
+                    return null;
+                });
+                Future<?> queued = wrapped.submit(() -> fail("should not run"));
+                assertTrue(queued.cancel(false));
+            });
+            factory.assertOpensClosesExceptions(1, 1, 0);
+        } finally {
+            release.countDown();
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shutdownNowReleasesTheResourcesOfQueuedTasks() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService wrapped = rm.wrapExecutorService(single);
+        Runnable queued = () -> fail("should not run");
+        try {
+            rm.consume(parent -> {
+                wrapped.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                wrapped.execute(queued);
+                started.await();
+            });
+            factory.assertOpensClosesExceptions(1, 0, 0);
+
+            List<Runnable> pending = wrapped.shutdownNow();
+            assertEquals(1, pending.size());
+            assertSame(queued, pending.get(0));
+            assertTrue(single.awaitTermination(5, TimeUnit.SECONDS));
+            factory.assertOpensClosesExceptions(1, 1, 0);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void rejectedTaskReleasesTheResource() {
+        executor.shutdown();
+        Executor wrapped = rm.wrapExecutor(executor);
+
+        rm.consume(parent -> {
+            try {
+                wrapped.execute(() -> fail("should not run"));
+                fail("expected rejection");
+            } catch (RejectedExecutionException x) {
+                //expected
+            }
+        });
+
+        factory.assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void nothingIsPropagatedOutsideAScope() throws Exception {
+        Integer open = rm.supplyAsync(rm::countOpenResources, executor).get();
+        assertEquals(Integer.valueOf(0), open);
+        factory.assertOpensClosesExceptions(0, 0, 0);
+    }
+
+    @Test
+    public void wrappedRunnableRunsOnce() {
+        Runnable[] wrapped = new Runnable[1];
+        rm.consume(parent -> wrapped[0] = rm.wrapRunnable(() -> assertSame(parent, rm.getCurrentResource().orElse(null))));
+
+        factory.assertOpensClosesExceptions(1, 0, 0);
+        wrapped[0].run();
+        factory.assertOpensClosesExceptions(1, 1, 0);
+        try {
+            wrapped[0].run();
+            fail();
+        } catch (IllegalStateException x) {
+            assertTrue(x.getMessage().contains("already been used"));
+        }
+    }
+
+    private static void waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out waiting for condition");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    static class Res {
+    }
+}
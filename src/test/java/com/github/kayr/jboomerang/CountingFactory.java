@@ -0,0 +1,66 @@
+package com.github.kayr.jboomerang;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The resource factory the tests share. It counts what it is asked to do, tracks how many resources are open at the
+ * same time and fails create or close on demand.
+ */
+class CountingFactory<R> implements JBoomerang.ResourceFactory<R> {
+
+    final AtomicInteger opens      = new AtomicInteger();
+    final AtomicInteger closes     = new AtomicInteger();
+    final AtomicInteger exceptions = new AtomicInteger();
+    final AtomicInteger open       = new AtomicInteger();
+    final AtomicInteger maxOpen    = new AtomicInteger();
+
+    volatile boolean failCreate;
+    volatile boolean failClose;
+    volatile Error   closeError;
+
+    private final Supplier<R> newResource;
+
+    CountingFactory(Supplier<R> newResource) {
+        this.newResource = newResource;
+    }
+
+    static CountingFactory<Object> ofObjects() {
+        return new CountingFactory<>(Object::new);
+    }
+
+    @Override
+    public R create(Object discriminator, JBoomerang.Args args) {
+        if (failCreate) {
+            throw new IllegalStateException("create failed");
+        }
+        opens.incrementAndGet();
+        maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+        return newResource.get();
+    }
+
+    @Override
+    public void close(Object discriminator, R resource) {
+        closes.incrementAndGet();
+        open.decrementAndGet();
+        if (closeError != null) {
+            throw closeError;
+        }
+        if (failClose) {
+            throw new IllegalStateException("close failed");
+        }
+    }
+
+    @Override
+    public void onException(Object discriminator, R resource) {
+        exceptions.incrementAndGet();
+    }
+
+    void assertOpensClosesExceptions(int opens, int closes, int exceptions) {
+        assertEquals("Opens not expected", opens, this.opens.get());
+        assertEquals("Close not expected", closes, this.closes.get());
+        assertEquals("Exception not expected", exceptions, this.exceptions.get());
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.kayr.jboomerang;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class FlightRecorderEventsTest {
+
+    private final JBoomerang<Object> rm = new JBoomerang<>(CountingFactory.ofObjects());
+
+    @Before
+    public void setUp() {
+        assumeTrue(ResourceEvents.EVENTS.getClass() != ResourceEvents.class);
+    }
+
+    @Test
+    public void scopeCreateAndCloseAreRecorded() throws Exception {
+        List<RecordedEvent> events = record(() -> rm.consume(outer -> rm.consume("db", JBoomerang.Propagation.JOIN, inner -> {
+        })));
+
+        List<RecordedEvent> scopes = ofType(events, "jboomerang.Scope");
+        assertEquals(2, scopes.size());
+        RecordedEvent inner = scopes.get(0);
+        assertEquals("db", inner.getString("discriminator"));
+        assertEquals("JOIN", inner.getString("propagation"));
+        assertEquals(1, inner.getInt("depth"));
+        assertEquals(0, inner.getInt("holders"));
+        RecordedEvent outer = scopes.get(1);
+        assertEquals(0, outer.getInt("depth"));
+
+        List<RecordedEvent> creates = ofType(events, "jboomerang.Create");
+        assertEquals(2, creates.size());
+        assertEquals("db", creates.get(1).getString("discriminator"));
+        assertEquals(2, creates.get(1).getInt("depth"));
+
+        List<RecordedEvent> closes = ofType(events, "jboomerang.Close");
+        assertEquals(2, closes.size());
+        assertEquals("db", closes.get(0).getString("discriminator"));
+        assertEquals(2, closes.get(0).getInt("depth"));
+    }
+
+    @Test
+    public void joinedScopeReportsTheOpenHolder() throws Exception {
+        List<RecordedEvent> events = record(() -> rm.consume(outer -> rm.consume(inner -> {
+        })));
+
+        List<RecordedEvent> scopes = ofType(events, "jboomerang.Scope");
+        assertEquals(1, scopes.get(0).getInt("holders"));
+        assertEquals(1, ofType(events, "jboomerang.Create").size());
+    }
+
+    @Test
+    public void reentrantJoinCountsTowardsTheDepth() throws Exception {
+        List<RecordedEvent> events = record(() -> rm.consume(outer -> rm.consume(inner -> rm.consume("db", JBoomerang.Propagation.JOIN, db -> {
+        }))));
+
+        List<RecordedEvent> creates = ofType(events, "jboomerang.Create");
+        assertEquals("db", creates.get(1).getString("discriminator"));
+        assertEquals(3, creates.get(1).getInt("depth"));
+    }
+
+    @Test
+    public void backgroundCloseHasNoScope() throws Exception {
+        BackgroundCloser closer = BackgroundCloser.builder().build();
+        JBoomerang<Object> deferred = new JBoomerang<>(new CountingFactory<Object>(Object::new) {
+            @Override
+            public boolean isCloseDeferrable(Object discriminator) {
+                return true;
+            }
+        }).closeInBackground(closer);
+
+        List<RecordedEvent> events = record(() -> {
+            deferred.consume(r -> {
+            });
+            closer.close();
+        });
+
+        List<RecordedEvent> closes = ofType(events, "jboomerang.Close");
+        assertEquals(1, closes.size());
+        assertEquals(0, closes.get(0).getInt("depth"));
+    }
+
+    private static List<RecordedEvent> record(Runnable work) throws Exception {
+        Path file = Files.createTempFile("jboomerang", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"jboomerang.Scope", "jboomerang.Create", "jboomerang.Close"}) {
+                recording.enable(name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            work.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static List<RecordedEvent> ofType(List<RecordedEvent> events, String name) {
+        return events.stream()
+                     .filter(e -> e.getEventType().getName().equals(name))
+                     .sorted((a, b) -> a.getEndTime().compareTo(b.getEndTime()))
+                     .collect(Collectors.toList());
+    }
+}
@@ -5,27 +5,34 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 import static org.junit.Assert.*;
 
 public class JBoomerangTest {
 
-    private int closes     = 0;
-    private int exceptions = 0;
-    private int work       = 0;
-    private int opens      = 0;
+    int closes     = 0;
+    int exceptions = 0;
+    int work       = 0;
+    int opens      = 0;
 
     JBoomerang<MyResource> rm;
 
+    protected JBoomerang<MyResource> newBoomerang(MyFactory factory) {
+        return new JBoomerang<>(factory);
+    }
+
     @Before
     public void setUp() {
-        rm = new JBoomerang<>(new MyFactory());
+        rm = newBoomerang(new MyFactory());
         closes = 0;
         exceptions = 0;
         work = 0;
         opens = 0;
     }
 
-    private void assertWorkExceptionsCloses(int work, int exceptions, int closes, int opens) {
+    void assertWorkExceptionsCloses(int work, int exceptions, int closes, int opens) {
         assertEquals("Work not equal", work, this.work);
         assertEquals("Exception not equal", exceptions, this.exceptions);
         assertEquals("Close not expected", closes, this.closes);
@@ -464,6 +471,59 @@ public class JBoomerangTest {
 
 
 
+    @Test
+    public void retainedThreadStateIsReusedAcrossOutermostScopes() {
+        rm.retainThreadState(true);
+
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> rm.consume("other", Propagation.JOIN, MyResource::work)));
+        ThreadState<MyResource> state = threadState();
+        assertNotNull(state);
+        assertEquals(0, rm.countDiscriminators());
+        assertEquals(0, rm.getDiscriminatorSize());
+
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> {
+            assertEquals(2, rm.countOpenResources());
+            assertEquals(1, rm.countDiscriminators());
+            rm.consume("other", Propagation.JOIN, MyResource::work);
+            assertEquals(2, rm.countDiscriminators());
+        }));
+
+        assertSame(state, threadState());
+        assertEquals(0, rm.countOpenResources());
+        assertEquals(0, rm.countDiscriminators());
+        assertWorkExceptionsCloses(2, 0, 6, 6);
+    }
+
+    @Test
+    public void retainedThreadStateIsClearedAfterExceptions() {
+        rm.retainThreadState(true);
+
+        try {
+            rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> {
+                throw new RuntimeException();
+            }));
+            fail("Did not expect to reach here");
+        } catch (RuntimeException x) {
+            assertWorkExceptionsCloses(0, 2, 2, 2);
+        }
+
+        assertEquals(0, rm.countOpenResources());
+        assertEquals(0, rm.getDiscriminatorSize());
+        rm.consume(r1 -> assertEquals(1, rm.countOpenResources()));
+        assertWorkExceptionsCloses(0, 2, 3, 3);
+    }
+
+    @Test
+    public void threadStateIsRemovedByDefault() {
+        assertNull(threadState());
+        rm.consume(r -> assertNotNull(threadState()));
+        assertNull(threadState());
+    }
+
+    private ThreadState<MyResource> threadState() {
+        return (ThreadState<MyResource>) rm.getScopeStore().current();
+    }
+
     public class MyResource {
 
         MyResource() {
@@ -474,8 +534,11 @@ public class JBoomerangTest {
             return ++work;
         }
 
+        boolean closed;
+
         public void close() {
             closes++;
+            closed = true;
             if (makeCloseNoise) {
                 if (useGenericException) {
                     ExceptionUtil.sneakyThrow(new Exception("Make Noise generic"));
@@ -530,6 +593,232 @@ public class JBoomerangTest {
 
     }
 
+    @Test
+    public void reentrantJoinOnlyCountsTheHolder() {
+        rm.consume(r1 -> rm.consume(r2 -> rm.consume(Propagation.REQUIRED, r3 -> {
+            assertSame(r1, r3);
+            assertEquals("every join is entered like the slow path does", 3, rm.getDiscriminatorSize());
+            assertEquals(1, rm.countOpenResources());
+            rm.consume("other", Propagation.JOIN, o -> assertEquals(4, rm.getDiscriminatorSize()));
+        })));
+        assertEquals(0, rm.getDiscriminatorSize());
+        try {
+            rm.consume(r1 -> rm.consume(r2 -> {
+                throw new IllegalStateException("inner failed");
+            }));
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("inner failed", x.getMessage());
+        }
+        assertWorkExceptionsCloses(0, 1, 3, 3);
+        assertEquals(0, rm.getDiscriminatorSize());
+    }
+
+    @Test
+    public void joinByArgsJoinsOnlyResourcesCreatedWithEqualArgs() {
+        rm.joinByArgs(true);
+        JBoomerang.Args tenantA = JBoomerang.Args.of("tenant", "a");
+        JBoomerang.Args tenantB = JBoomerang.Args.of("tenant", "b");
+
+        rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, tenantA, a -> {
+            rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, tenantB, b -> {
+                assertNotSame(a, b);
+                rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, JBoomerang.Args.of("tenant", "a"), again -> {
+                    assertSame(a, again);
+                    return null;
+                });
+                rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.REQUIRED, tenantB, again -> {
+                    assertSame(b, again);
+                    return null;
+                });
+                return null;
+            });
+            try {
+                rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.REQUIRED, tenantB, r -> null);
+                fail();
+            } catch (IllegalStateException x) {
+                //no resource for tenant b anymore
+            }
+            return null;
+        });
+        assertWorkExceptionsCloses(0, 0, 2, 2);
+    }
+
+    @Test
+    public void lazyJoinByArgsGetsTheResourceOfEqualArgs() {
+        rm.joinByArgs(true);
+        JBoomerang.Args tenantA = JBoomerang.Args.of("a");
+
+        rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, tenantA, a ->
+                rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, JBoomerang.Args.of("b"), b ->
+                        rm.withLazyResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, tenantA, h -> {
+                            assertNotSame(a, b);
+                            assertSame(a, h.get());
+                            return null;
+                        })));
+        assertWorkExceptionsCloses(0, 0, 2, 2);
+    }
+
+    @Test
+    public void asyncJoinByArgsLeasesTheResourceOfEqualArgs() {
+        rm.joinByArgs(true);
+        JBoomerang.Args tenantA = JBoomerang.Args.of("a");
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        MyResource[] resources = new MyResource[2];
+
+        CompletionStage<String> stage = rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, tenantA, a ->
+                rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.WITH_NEW, JBoomerang.Args.of("b"), b -> {
+                    resources[0] = a;
+                    resources[1] = b;
+                    return rm.withResourceAsync(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, tenantA, r -> {
+                        assertSame(a, r);
+                        return pending;
+                    });
+                }));
+
+        assertFalse("the leased resource stays open", resources[0].closed);
+        assertTrue(resources[1].closed);
+
+        pending.complete("done");
+        assertEquals("done", stage.toCompletableFuture().join());
+        assertTrue(resources[0].closed);
+        assertWorkExceptionsCloses(0, 0, 2, 2);
+    }
+
+    @Test
+    public void withoutJoinByArgsTheInnermostResourceIsJoined() {
+        rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, JBoomerang.Args.of("a"), a ->
+                rm.withResource(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, JBoomerang.Args.of("b"), b -> {
+                    assertSame(a, b);
+                    return null;
+                }));
+        assertWorkExceptionsCloses(0, 0, 1, 1);
+    }
+
+    @Test
+    public void argsAreComparedByValue() {
+        assertEquals(JBoomerang.Args.of("a", 1, new int[]{2}), JBoomerang.Args.of("a", 1, new int[]{2}));
+        assertEquals(JBoomerang.Args.of("a", 1).hashCode(), JBoomerang.Args.of("a", 1).hashCode());
+        assertNotEquals(JBoomerang.Args.of("a"), JBoomerang.Args.of("a", 1));
+        assertEquals(JBoomerang.Args.none(), JBoomerang.Args.of());
+    }
+
+    @Test
+    public void manyDiscriminatorsKeepTheirOwnResources() {
+        nestDiscriminators(0, 40);
+        assertWorkExceptionsCloses(40, 0, 40, 40);
+        assertEquals(0, rm.countDiscriminators());
+    }
+
+    private void nestDiscriminators(int index, int count) {
+        if (index == count) {
+            assertEquals(count, rm.countDiscriminators());
+            return;
+        }
+        Object discriminator = index == 0 ? null : "db-" + index;
+        rm.consume(discriminator, Propagation.JOIN, r -> {
+            r.work();
+            nestDiscriminators(index + 1, count);
+            assertSame(r, rm.getCurrentResource(discriminator).get());
+            assertEquals(1, rm.countOpenResources(discriminator));
+        });
+    }
+
+    @Test
+    public void testSUSPEND_Propagation() {
+        rm.consume(Propagation.JOIN, r -> {
+            rm.consume(Propagation.SUSPEND, nothing -> {
+                assertNull(nothing);
+                assertEquals(0, rm.countOpenResources());
+                assertFalse(rm.getCurrentResource().isPresent());
+                rm.consume(Propagation.NONE, Assert::assertNull);
+                rm.consume(Propagation.JOIN, r2 -> assertNotSame(r, r2));
+            });
+            assertEquals(1, rm.countOpenResources());
+            assertSame(r, rm.getCurrentResource().get());
+            rm.consume(Propagation.JOIN, r3 -> assertSame(r, r3));
+        });
+        assertWorkExceptionsCloses(0, 0, 2, 2);
+    }
+
+    @Test
+    public void suspendNotifiesTheFactoryEvenWhenTheWorkFails() {
+        StringBuilder events = new StringBuilder();
+        rm = newBoomerang(new MyFactory() {
+            @Override
+            public void onSuspend(Object discriminator, MyResource resource) {
+                events.append("suspend,");
+            }
+
+            @Override
+            public void onResume(Object discriminator, MyResource resource) {
+                events.append("resume,");
+            }
+        });
+
+        rm.consume(Propagation.SUSPEND, Assert::assertNull);
+        assertEquals("", events.toString());
+
+        rm.consume(Propagation.JOIN, r -> {
+            try {
+                rm.consume(Propagation.SUSPEND, nothing -> {
+                    events.append("work,");
+                    throw new IllegalStateException("remote call failed");
+                });
+                fail();
+            } catch (IllegalStateException x) {
+                assertEquals("remote call failed", x.getMessage());
+            }
+        });
+        assertEquals("suspend,work,resume,", events.toString());
+        assertWorkExceptionsCloses(0, 0, 1, 1);
+    }
+
+    @Test
+    public void queriesOutsideAScopeLeaveNoThreadState() {
+        assertNull(rm.getCurrentResourceOrNull());
+        assertNull(rm.getCurrentResourceOrNull("tenant"));
+        assertFalse(rm.isActive());
+        assertFalse(rm.isActive("tenant"));
+        assertEquals(0, rm.depth("tenant"));
+        assertEquals(0, rm.countOpenResources("tenant"));
+        assertFalse(rm.getCurrentResource("tenant").isPresent());
+        assertSame(JBoomerang.COMMON_DISCRIMINATOR, rm.currentDiscriminatorOrCommon());
+
+        assertNull(rm.getScopeStore().current());
+    }
+
+    @Test
+    public void queriesInsideScopes() {
+        rm.consume(Propagation.JOIN, r1 -> rm.consume("tenant", Propagation.JOIN, r2 -> rm.consume("tenant", Propagation.WITH_NEW, r3 -> {
+            assertSame(r3, rm.getCurrentResourceOrNull());
+            assertSame(r3, rm.getCurrentResourceOrNull("tenant"));
+            assertSame(r1, rm.getCurrentResourceOrNull(JBoomerang.COMMON_DISCRIMINATOR));
+            assertTrue(rm.isActive());
+            assertTrue(rm.isActive(JBoomerang.COMMON_DISCRIMINATOR));
+            assertFalse(rm.isActive("other"));
+            assertEquals(2, rm.depth("tenant"));
+            assertEquals(1, rm.depth(JBoomerang.COMMON_DISCRIMINATOR));
+            assertEquals(0, rm.depth("other"));
+        })));
+        assertNull(rm.getScopeStore().current());
+    }
+
+    @Test
+    public void queriesDoNotAcquireALazyResource() {
+        rm.withLazyResource(h -> {
+            assertTrue(rm.isActive());
+            assertEquals(1, rm.depth(JBoomerang.COMMON_DISCRIMINATOR));
+            assertNull(rm.getCurrentResourceOrNull());
+            assertFalse(h.isAcquired());
+
+            MyResource r = h.get();
+            assertSame(r, rm.getCurrentResourceOrNull());
+            return r;
+        });
+        assertWorkExceptionsCloses(0, 0, 1, 1);
+    }
+
     class MyFactory implements JBoomerang.ResourceFactory<MyResource> {
 
         @Override
@@ -0,0 +1,139 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Args;
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LazyResourceTest {
+
+    private final AtomicInteger opens      = new AtomicInteger();
+    private final AtomicInteger closes     = new AtomicInteger();
+    private final AtomicInteger exceptions = new AtomicInteger();
+
+    private JBoomerang<Greeter> rm;
+
+    @Before
+    public void setUp() {
+        rm = new JBoomerang<>(new GreeterFactory());
+    }
+
+    private void assertOpensClosesExceptions(int opens, int closes, int exceptions) {
+        assertEquals("Opens not expected", opens, this.opens.get());
+        assertEquals("Close not expected", closes, this.closes.get());
+        assertEquals("Exception not expected", exceptions, this.exceptions.get());
+    }
+
+    @Test
+    public void untouchedResourceIsNeverCreatedOrClosed() {
+        String result = rm.withLazyResource(h -> {
+            assertFalse(h.isAcquired());
+            return "x";
+        });
+        assertEquals("x", result);
+        assertOpensClosesExceptions(0, 0, 0);
+    }
+
+    @Test
+    public void resourceIsCreatedOnFirstGet() {
+        rm.withLazyResource(h -> {
+            assertEquals("hello 1", h.get().greet());
+            assertEquals("hello 1", h.get().greet());
+            assertTrue(h.isAcquired());
+            return null;
+        });
+        assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void nestedJoinCreatesTheLazyResource() {
+        rm.withLazyResource(h -> {
+            String greeting = rm.withResource(g -> g.greet());
+            assertEquals("hello 1", greeting);
+            assertTrue(h.isAcquired());
+            return rm.withLazyResource(h2 -> {
+                assertSame(h.get(), h2.get());
+                return null;
+            });
+        });
+        assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void failureOnUntouchedResourceDoesNotNotifyTheFactory() {
+        try {
+            rm.withLazyResource(h -> {
+                throw new IllegalStateException("work failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("work failed", x.getMessage());
+        }
+        assertOpensClosesExceptions(0, 0, 0);
+
+        try {
+            rm.withLazyResource(h -> {
+                h.get();
+                throw new IllegalStateException("work failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("work failed", x.getMessage());
+        }
+        assertOpensClosesExceptions(1, 1, 1);
+    }
+
+    @Test
+    public void proxyCreatesTheResourceOnFirstCall() {
+        rm.withLazyResource(Greeter.class, "db", Propagation.JOIN, Args.none(), g -> {
+            assertEquals("LazyResource[not acquired]", g.toString());
+            assertEquals(g, g);
+            assertOpensClosesExceptions(0, 0, 0);
+            assertEquals("hello 1", g.greet());
+            return null;
+        });
+        assertOpensClosesExceptions(1, 1, 0);
+
+        rm.withLazyResource(Greeter.class, "db", Propagation.JOIN, Args.none(), g -> g);
+        assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void withNewLazyResourceIsSeparate() {
+        rm.withLazyResource("db", Propagation.JOIN, Args.none(), outer -> {
+            outer.get();
+            return rm.withLazyResource("db", Propagation.WITH_NEW, Args.none(), inner -> {
+                assertFalse(inner.isAcquired());
+                return null;
+            });
+        });
+        assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    public interface Greeter {
+        String greet();
+    }
+
+    class GreeterFactory implements JBoomerang.ResourceFactory<Greeter> {
+
+        @Override
+        public Greeter create(Object discriminator, Args args) {
+            int id = opens.incrementAndGet();
+            return () -> "hello " + id;
+        }
+
+        @Override
+        public void close(Object discriminator, Greeter resource) {
+            closes.incrementAndGet();
+        }
+
+        @Override
+        public void onException(Object discriminator, Greeter resource) {
+            exceptions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.kayr.jboomerang;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LeakWatchdogTest {
+
+    private final List<LeakWatchdog.LongHeldResource> reported = new CopyOnWriteArrayList<>();
+    private final CountDownLatch                      release  = new CountDownLatch(1);
+
+    private final LeakWatchdog watchdog = LeakWatchdog.builder()
+                                                      .sampleRate(1)
+                                                      .threshold(Duration.ofMillis(20))
+                                                      .checkInterval(Duration.ZERO)
+                                                      .onLongHeld(reported::add)
+                                                      .build();
+
+    private final JBoomerang<Object> rm = new JBoomerang<>(CountingFactory.ofObjects()).watchForLeaks(watchdog);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        watchdog.close();
+    }
+
+    @Test
+    public void closedResourcesAreNotWatched() {
+        rm.consume(r -> assertEquals(1, watchdog.countWatched()));
+        assertEquals(0, watchdog.countWatched());
+    }
+
+    @Test
+    public void resourceHeldPastTheThresholdIsReportedOnce() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        Thread stuck = new Thread(() -> rm.consume(r -> {
+            opened.countDown();
+            release.await();
+        }), "stuck-thread");
+        stuck.start();
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        assertTrue(watchdog.findLongHeld().isEmpty());
+        Thread.sleep(30);
+
+        List<LeakWatchdog.LongHeldResource> longHeld = watchdog.findLongHeld();
+        assertEquals(1, longHeld.size());
+        LeakWatchdog.LongHeldResource resource = longHeld.get(0);
+        assertEquals(JBoomerang.COMMON_DISCRIMINATOR, resource.getDiscriminator());
+        assertEquals("stuck-thread", resource.getOwnerName());
+        assertTrue(resource.getHeldFor().toMillis() >= 20);
+        assertTrue(Arrays.stream(resource.getOpenedAt()).anyMatch(e -> e.getMethodName().contains("resourceHeldPastTheThresholdIsReportedOnce")));
+        assertTrue(Arrays.stream(resource.getOwnerStackTrace()).anyMatch(e -> e.getClassName().equals(CountDownLatch.class.getName())));
+
+        watchdog.check();
+        watchdog.check();
+        assertEquals(1, reported.size());
+
+        release.countDown();
+        stuck.join();
+        assertTrue(watchdog.findLongHeld().isEmpty());
+    }
+
+    @Test
+    public void zeroSampleRateWatchesNothing() {
+        LeakWatchdog none = LeakWatchdog.builder().sampleRate(0).checkInterval(Duration.ZERO).build();
+        rm.watchForLeaks(none);
+
+        rm.consume(r -> assertEquals(0, none.countWatched()));
+    }
+
+    @Test
+    public void periodicCheckReportsWithoutBeingAsked() throws InterruptedException {
+        CountDownLatch called = new CountDownLatch(1);
+        LeakWatchdog periodic = LeakWatchdog.builder()
+                                            .sampleRate(1)
+                                            .threshold(Duration.ofMillis(1))
+                                            .checkInterval(Duration.ofMillis(5))
+                                            .onLongHeld(r -> called.countDown())
+                                            .build();
+        rm.watchForLeaks(periodic);
+        try {
+            rm.consume(r -> assertTrue(called.await(5, TimeUnit.SECONDS)));
+        } finally {
+            periodic.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class LingeringResourceFactoryTest {
+
+    private final CountingFactory<Object> delegate = CountingFactory.ofObjects();
+
+    private LingeringResourceFactory<Object> factory;
+
+    @After
+    public void tearDown() {
+        if (factory != null) {
+            factory.close();
+        }
+    }
+
+    private JBoomerang<Object> newBoomerang(LingeringResourceFactory.Builder<Object> builder) {
+        factory = builder.build();
+        return new JBoomerang<>(factory);
+    }
+
+    @Test
+    public void nextScopeOnTheSameThreadReusesTheResource() {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxIdleTime(Duration.ofMinutes(1)));
+
+        Object first = rm.withResource(r -> r);
+        Object second = rm.withResource(r -> r);
+
+        assertSame(first, second);
+        delegate.assertOpensClosesExceptions(1, 0, 0);
+        assertEquals(1, factory.countParked(JBoomerang.COMMON_DISCRIMINATOR));
+
+        factory.close();
+        delegate.assertOpensClosesExceptions(1, 1, 0);
+        assertEquals(0, factory.countParked(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void otherThreadsDoNotSeeParkedResources() throws Exception {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxIdleTime(Duration.ofMinutes(1)));
+
+        Object mine = rm.withResource(r -> r);
+        Object[] theirs = new Object[1];
+        Thread t = new Thread(() -> theirs[0] = rm.withResource(r -> r));
+        t.start();
+        t.join();
+
+        assertNotSame(mine, theirs[0]);
+        delegate.assertOpensClosesExceptions(2, 0, 0);
+
+        //the sweeper closes resources parked by dead threads
+        factory.evictExpired();
+        delegate.assertOpensClosesExceptions(2, 1, 0);
+        assertSame(mine, rm.withResource(r -> r));
+    }
+
+    @Test
+    public void resourceIsClosedAfterMaxUses() {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxUses(2).maxIdleTime(Duration.ofMinutes(1)));
+
+        Object first = rm.withResource(r -> r);
+        assertSame(first, rm.withResource(r -> r));
+        delegate.assertOpensClosesExceptions(1, 1, 0);
+
+        assertNotSame(first, rm.withResource(r -> r));
+        delegate.assertOpensClosesExceptions(2, 1, 0);
+    }
+
+    @Test
+    public void expiredResourceIsClosedByTheSweeper() throws Exception {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate)
+                                                                     .maxIdleTime(Duration.ofMillis(20))
+                                                                     .sweepInterval(Duration.ofMillis(10)));
+        rm.withResource(r -> r);
+        delegate.assertOpensClosesExceptions(1, 0, 0);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delegate.closes.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        delegate.assertOpensClosesExceptions(1, 1, 0);
+        rm.withResource(r -> r);
+        delegate.assertOpensClosesExceptions(2, 1, 0);
+    }
+
+    @Test
+    public void expiredResourceIsNotReused() throws Exception {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate)
+                                                                     .maxIdleTime(Duration.ofMillis(1))
+                                                                     .sweepInterval(Duration.ZERO));
+        Object first = rm.withResource(r -> r);
+        Thread.sleep(5);
+        assertNotSame(first, rm.withResource(r -> r));
+        delegate.assertOpensClosesExceptions(2, 1, 0);
+    }
+
+    @Test
+    public void failedResourceIsNotParked() {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxIdleTime(Duration.ofMinutes(1)));
+
+        try {
+            rm.consume(r -> {
+                throw new IllegalStateException("work failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("work failed", x.getMessage());
+        }
+        delegate.assertOpensClosesExceptions(1, 1, 1);
+        assertEquals(0, factory.countParked(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void onlyOneResourceIsParkedPerDiscriminator() {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxIdleTime(Duration.ofMinutes(1)));
+
+        rm.consume(Propagation.JOIN, outer -> rm.consume(Propagation.WITH_NEW, inner -> assertNotSame(outer, inner)));
+
+        delegate.assertOpensClosesExceptions(2, 1, 0);
+        assertEquals(1, factory.countParked(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void maxUsesCountsAResourceBorrowedAroundANestedCreate() {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxUses(2).maxIdleTime(Duration.ofMinutes(1)));
+
+        Object first = rm.withResource(r -> r);
+        rm.consume(Propagation.JOIN, outer -> {
+            assertSame(first, outer);
+            try {
+                rm.consume(Propagation.WITH_NEW, inner -> {
+                    throw new IllegalStateException("inner failed");
+                });
+                fail();
+            } catch (IllegalStateException x) {
+                assertEquals("inner failed", x.getMessage());
+            }
+        });
+
+        delegate.assertOpensClosesExceptions(2, 2, 1);
+        assertEquals(0, factory.countParked(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void resourceReturnedAfterCloseIsClosed() {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxIdleTime(Duration.ofMinutes(1)));
+
+        rm.consume(r -> factory.close());
+
+        delegate.assertOpensClosesExceptions(1, 1, 0);
+        assertEquals(0, factory.countParked(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void nullDiscriminatorIsParked() {
+        JBoomerang<Object> rm = newBoomerang(LingeringResourceFactory.builder(delegate).maxIdleTime(Duration.ofMinutes(1)));
+
+        rm.consume(null, Propagation.JOIN, r -> {
+        });
+
+        assertEquals(1, factory.countParked(null));
+        assertEquals(0, factory.countParked("other"));
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NestedPropagationTest {
+
+    private final List<String> events = new ArrayList<>();
+
+    private JBoomerang<Tx> rm;
+
+    @Before
+    public void setUp() {
+        rm = new JBoomerang<>(new TxFactory());
+    }
+
+    @Test
+    public void nestedWithoutAnOpenResourceCreatesOne() {
+        rm.consume(Propagation.NESTED, tx -> assertEquals("tx1", tx.name));
+        assertEquals("[create tx1, close tx1]", events.toString());
+    }
+
+    @Test
+    public void nestedCreatesAChildOfTheOpenResource() {
+        rm.consume(Propagation.JOIN, tx -> rm.consume(Propagation.NESTED, sp -> {
+            assertEquals("tx1/sp1", sp.name);
+            assertSame(tx, sp.parent);
+            rm.consume(Propagation.JOIN, joined -> assertSame(sp, joined));
+            assertSame(sp, rm.getCurrentResource().get());
+        }));
+        assertEquals("[create tx1, savepoint tx1/sp1, release tx1/sp1, close tx1]", events.toString());
+    }
+
+    @Test
+    public void failedChildOnlyRollsBackTheChild() {
+        rm.consume(Propagation.JOIN, tx -> {
+            try {
+                rm.consume(Propagation.NESTED, sp -> {
+                    throw new IllegalStateException("child failed");
+                });
+                fail();
+            } catch (IllegalStateException x) {
+                assertEquals("child failed", x.getMessage());
+            }
+            rm.consume(Propagation.NESTED, sp -> assertEquals("tx1/sp2", sp.name));
+        });
+        assertEquals("[create tx1, savepoint tx1/sp1, rollback to tx1/sp1, release tx1/sp1, savepoint tx1/sp2, release tx1/sp2, close tx1]", events.toString());
+    }
+
+    @Test
+    public void childFailureThatReachesTheParentFailsBoth() {
+        try {
+            rm.consume(Propagation.JOIN, tx -> rm.consume(Propagation.NESTED, sp -> {
+                throw new IllegalStateException("child failed");
+            }));
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("child failed", x.getMessage());
+        }
+        assertEquals("[create tx1, savepoint tx1/sp1, rollback to tx1/sp1, release tx1/sp1, rollback tx1, close tx1]", events.toString());
+    }
+
+    @Test
+    public void factoriesWithoutChildrenRejectNested() {
+        JBoomerang<Object> plain = new JBoomerang<>(new JBoomerang.ResourceFactory<Object>() {
+            @Override
+            public Object create(Object discriminator, JBoomerang.Args args) {
+                return new Object();
+            }
+
+            @Override
+            public void close(Object discriminator, Object resource) {
+            }
+
+            @Override
+            public void onException(Object discriminator, Object resource) {
+            }
+        });
+        try {
+            plain.consume(Propagation.JOIN, r -> plain.consume(Propagation.NESTED, child -> fail()));
+            fail();
+        } catch (UnsupportedOperationException x) {
+            assertTrue(x.getMessage().startsWith("NESTED propagation is not supported"));
+        }
+        assertEquals(0, plain.countOpenResources());
+    }
+
+    static class Tx {
+        private final String name;
+        private final Tx parent;
+        private int savepoints;
+
+        Tx(String name, Tx parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+    }
+
+    class TxFactory implements JBoomerang.ResourceFactory<Tx> {
+        private int count;
+
+        @Override
+        public Tx create(Object discriminator, JBoomerang.Args args) {
+            Tx tx = new Tx("tx" + ++count, null);
+            events.add("create " + tx.name);
+            return tx;
+        }
+
+        @Override
+        public void close(Object discriminator, Tx resource) {
+            events.add("close " + resource.name);
+        }
+
+        @Override
+        public void onException(Object discriminator, Tx resource) {
+            events.add("rollback " + resource.name);
+        }
+
+        @Override
+        public Tx createChild(Object discriminator, Tx parent) {
+            Tx sp = new Tx(parent.name + "/sp" + ++parent.savepoints, parent);
+            events.add("savepoint " + sp.name);
+            return sp;
+        }
+
+        @Override
+        public void releaseChild(Object discriminator, Tx child, Tx parent) {
+            assertSame(parent, child.parent);
+            events.add("release " + child.name);
+        }
+
+        @Override
+        public void onChildException(Object discriminator, Tx child, Tx parent) {
+            events.add("rollback to " + child.name);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OpenResourceRegistryTest {
+
+    private OpenResourceRegistry registry;
+    private JBoomerang<Object> rm;
+
+    @Before
+    public void setUp() {
+        registry = new OpenResourceRegistry();
+        rm = new JBoomerang<>(CountingFactory.ofObjects()).trackOpenResources(registry);
+    }
+
+    @Test
+    public void countsResourcesOpenOnOtherThreads() throws Exception {
+        int threads = 4;
+        CountDownLatch opened = new CountDownLatch(threads);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] futures = new Future<?>[threads];
+            for (int i = 0; i < threads; i++) {
+                futures[i] = executor.submit(() -> rm.consume("db", Propagation.JOIN, r -> {
+                    rm.consume("db", Propagation.JOIN, r2 -> {
+                        opened.countDown();
+                        await(release);
+                    });
+                }));
+            }
+            assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+            assertEquals(0, rm.countOpenResources("db"));
+            assertEquals(threads, registry.countOpen("db"));
+            assertEquals(threads, registry.countOpen());
+
+            release.countDown();
+            for (Future<?> f : futures) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        OpenResourceRegistry.Snapshot snapshot = registry.snapshot("db");
+        assertEquals(0, snapshot.getOpen());
+        assertEquals(threads, snapshot.getOpened());
+        assertEquals(0, snapshot.getOldestOpenedAtMillis());
+    }
+
+    @Test
+    public void reportsTheOldestOpenResource() throws Exception {
+        rm.consume("db", Propagation.JOIN, outer -> {
+            Thread.sleep(20);
+            rm.consume("db", Propagation.WITH_NEW, inner -> {
+                OpenResourceRegistry.Snapshot snapshot = registry.snapshot().get("db");
+                assertEquals(2, snapshot.getOpen());
+                assertTrue(snapshot.getOldestOpenAge().toMillis() >= 20);
+                assertTrue(snapshot.getOldestOpenedAtMillis() <= System.currentTimeMillis() - 20);
+            });
+            assertEquals(1, registry.countOpen("db"));
+        });
+        assertEquals(0, registry.countOpen());
+        assertNull(registry.snapshot("other"));
+    }
+
+    @Test
+    public void tracksTheNullDiscriminator() {
+        rm.consume(null, Propagation.JOIN, r -> {
+            assertEquals(1, registry.countOpen(null));
+            assertEquals(1, registry.snapshot().get(null).getOpen());
+        });
+        assertEquals(0, registry.countOpen(null));
+        assertEquals(1, registry.snapshot(null).getOpened());
+        assertNull(registry.snapshot(null).getDiscriminator());
+    }
+
+    @Test
+    public void resourcesFailingOnCloseAreNoLongerOpen() {
+        CountingFactory<Object> factory = CountingFactory.ofObjects();
+        factory.failClose = true;
+        JBoomerang<Object> failing = new JBoomerang<>(factory).trackOpenResources(registry);
+
+        try {
+            failing.consume("db", Propagation.JOIN, r -> assertEquals(1, registry.countOpen("db")));
+            fail();
+        } catch (BoomerangCloseException x) {
+            assertEquals("close failed", x.getCause().getMessage());
+        }
+        assertEquals(0, registry.countOpen("db"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
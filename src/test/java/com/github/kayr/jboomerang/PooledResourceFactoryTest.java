@@ -0,0 +1,179 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PooledResourceFactoryTest {
+
+    private final CountingFactory<Res> factory = new CountingFactory<>(Res::new);
+
+    @Test
+    public void outermostScopesReuseThePooledResource() {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory).maxSize(2).build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        Res r1 = rm.withResource(r -> r);
+        Res r2 = rm.withResource(r -> r);
+        Res r3 = rm.withResource(r -> r);
+
+        assertSame(r1, r2);
+        assertSame(r2, r3);
+        assertEquals(1, factory.opens.get());
+        assertEquals(0, factory.closes.get());
+        assertEquals(1, pool.countIdle(JBoomerang.COMMON_DISCRIMINATOR));
+
+        pool.close();
+        assertEquals(1, factory.closes.get());
+        assertEquals(0, pool.countTotal(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void resourceReturnedAfterCloseIsClosed() {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory).minIdle(1).maxSize(2).build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> assertNotSame(r1, r2)));
+        assertEquals(2, pool.countIdle(JBoomerang.COMMON_DISCRIMINATOR));
+
+        rm.consume(r -> {
+            pool.close();
+            assertEquals("the idle resource is closed at once", 1, factory.closes.get());
+        });
+
+        assertEquals(2, factory.closes.get());
+        assertEquals(0, pool.countIdle(JBoomerang.COMMON_DISCRIMINATOR));
+        assertEquals(0, pool.countTotal(JBoomerang.COMMON_DISCRIMINATOR));
+
+        pool.evictIdle();
+        assertEquals("min idle is not refilled", 2, factory.opens.get());
+    }
+
+    @Test
+    public void withNewBorrowsASecondResource() {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory).maxSize(2).build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> assertNotSame(r1, r2)));
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> assertNotSame(r1, r2)));
+
+        assertEquals(2, factory.opens.get());
+        assertEquals(2, pool.countIdle(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void exhaustedPoolFailsFast() {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory).maxSize(1).build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        try {
+            rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> fail("not expected here")));
+            fail("expected pool to be exhausted");
+        } catch (IllegalStateException x) {
+            assertTrue(x.getMessage().contains("resource pool exhausted"));
+        }
+        //the outer resource saw the failure hence it is discarded
+        assertEquals(1, factory.opens.get());
+        assertEquals(1, factory.exceptions.get());
+        assertEquals(0, pool.countTotal(JBoomerang.COMMON_DISCRIMINATOR));
+    }
+
+    @Test
+    public void failedResourceIsDiscardedWithoutReset() {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory).build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        Res[] failed = new Res[1];
+        try {
+            rm.consume(r -> {
+                failed[0] = r;
+                throw new RuntimeException("work failed");
+            });
+            fail();
+        } catch (RuntimeException x) {
+            assertEquals("work failed", x.getMessage());
+        }
+
+        assertEquals(1, factory.exceptions.get());
+        assertEquals(1, factory.closes.get());
+        assertEquals(0, pool.countTotal(JBoomerang.COMMON_DISCRIMINATOR));
+        assertNotSame(failed[0], rm.withResource(r -> r));
+    }
+
+    @Test
+    public void failedResourceIsReturnedAfterReset() {
+        AtomicInteger resets = new AtomicInteger();
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory)
+                                                               .resetWith(r -> resets.incrementAndGet())
+                                                               .build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        Res[] failed = new Res[1];
+        try {
+            rm.consume(r -> {
+                failed[0] = r;
+                throw new RuntimeException("work failed");
+            });
+            fail();
+        } catch (RuntimeException x) {
+            assertEquals(1, resets.get());
+        }
+
+        assertEquals(0, factory.closes.get());
+        assertSame(failed[0], rm.withResource(r -> r));
+    }
+
+    @Test
+    public void invalidResourceIsReplacedOnBorrow() {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory)
+                                                               .validateWith(r -> !r.broken)
+                                                               .build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        Res first = rm.withResource(r -> r);
+        first.broken = true;
+        Res second = rm.withResource(r -> r);
+
+        assertNotSame(first, second);
+        assertEquals(2, factory.opens.get());
+        assertEquals(1, factory.closes.get());
+    }
+
+    @Test
+    public void discriminatorsHaveSeparatePools() {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory).maxSize(1).build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        rm.consume("a", Propagation.JOIN, r1 -> rm.consume("b", Propagation.JOIN, r2 -> assertNotSame(r1, r2)));
+
+        assertEquals(1, pool.countIdle("a"));
+        assertEquals(1, pool.countIdle("b"));
+    }
+
+    @Test
+    public void idleResourcesAreEvictedDownToMinIdle() throws InterruptedException {
+        PooledResourceFactory<Res> pool = PooledResourceFactory.builder(factory)
+                                                               .minIdle(1)
+                                                               .maxIdleTime(Duration.ofMillis(1))
+                                                               .build();
+        JBoomerang<Res> rm = new JBoomerang<>(pool);
+
+        assertEquals(0, factory.opens.get());
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r2 -> rm.consume(Propagation.WITH_NEW, r3 -> {
+        })));
+        assertEquals(3, pool.countIdle(JBoomerang.COMMON_DISCRIMINATOR));
+
+        Thread.sleep(5);
+        pool.evictIdle();
+
+        assertEquals(1, pool.countIdle(JBoomerang.COMMON_DISCRIMINATOR));
+        assertEquals(2, factory.closes.get());
+    }
+
+    static class Res {
+        boolean broken = false;
+    }
+}
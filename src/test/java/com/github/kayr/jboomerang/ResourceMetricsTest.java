@@ -0,0 +1,149 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResourceMetricsTest {
+
+    private final CountingFactory<Object> factory = CountingFactory.ofObjects();
+
+    private ResourceMetrics metrics;
+    private JBoomerang<Object> rm;
+
+    @Before
+    public void setUp() {
+        metrics = new ResourceMetrics();
+        rm = new JBoomerang<>(factory).addListener(metrics);
+    }
+
+    @Test
+    public void countsCreatesJoinsAndCloses() {
+        rm.withResource("db", Propagation.JOIN, JBoomerang.Args.none(), r1 ->
+                rm.withResource("db", Propagation.REQUIRED, JBoomerang.Args.none(), r2 ->
+                        rm.withResource("db", Propagation.REQUIRED, JBoomerang.Args.none(), r3 -> "x")));
+
+        ResourceMetrics.Stats stats = metrics.get("db");
+        assertEquals(1, stats.getCreates());
+        assertEquals(2, stats.getJoins());
+        assertEquals(1, stats.getCloses());
+        assertEquals(0, stats.getWithNewCreates());
+        assertEquals(3, stats.getDepth().getCount());
+        assertEquals(3, stats.getDepth().getMax());
+        assertEquals(1, stats.getHoldTime().getCount());
+        assertEquals(1, stats.getCreateLatency().getCount());
+        assertEquals(1, stats.getCloseLatency().getCount());
+    }
+
+    @Test
+    public void countsWithNewPerDiscriminator() {
+        rm.withResource("a", Propagation.JOIN, JBoomerang.Args.none(), r1 ->
+                rm.withResource("a", Propagation.WITH_NEW, JBoomerang.Args.none(), r2 ->
+                        rm.withResource("b", Propagation.JOIN, JBoomerang.Args.none(), r3 -> "x")));
+
+        assertEquals(2, metrics.get("a").getCreates());
+        assertEquals(1, metrics.get("a").getWithNewCreates());
+        assertEquals(2, metrics.get("a").getCloses());
+        assertEquals(1, metrics.get("b").getCreates());
+        assertNull(metrics.get("c"));
+    }
+
+    @Test
+    public void countsTheNullDiscriminator() {
+        rm.withResource(null, Propagation.JOIN, JBoomerang.Args.none(), r1 ->
+                rm.withResource(null, Propagation.REQUIRED, JBoomerang.Args.none(), r2 -> "x"));
+
+        assertEquals(1, metrics.get(null).getCreates());
+        assertEquals(1, metrics.get(null).getJoins());
+        assertEquals(1, metrics.get(null).getCloses());
+        assertEquals(Collections.singleton(null), metrics.getDiscriminators());
+    }
+
+    @Test
+    public void countsExceptionsAndCloseFailures() {
+        factory.failClose = true;
+        try {
+            rm.withResource("db", Propagation.JOIN, JBoomerang.Args.none(), r -> {
+                throw new IllegalStateException("work failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("work failed", x.getMessage());
+        }
+
+        ResourceMetrics.Stats stats = metrics.get("db");
+        assertEquals(1, stats.getExceptions());
+        assertEquals(1, stats.getCloseFailures());
+        assertEquals(0, stats.getCloses());
+    }
+
+    @Test
+    public void allListenersReceiveEvents() {
+        List<String> events = new ArrayList<>();
+        rm.addListener(new ResourceListener() {
+            @Override
+            public void onCreate(Object discriminator, Propagation propagation, long createNanos) {
+                events.add("create:" + propagation);
+            }
+
+            @Override
+            public void onClose(Object discriminator, long holdNanos, long closeNanos) {
+                assertTrue(holdNanos >= closeNanos);
+                events.add("close");
+            }
+        });
+
+        rm.withResource(r -> rm.withResource(r2 -> "x"));
+
+        assertEquals("[create:JOIN, close]", events.toString());
+        assertEquals(1, metrics.getDiscriminators().size());
+    }
+
+    @Test
+    public void failingCreateListenerDoesNotLeakTheResource() {
+        AdmissionControl admission = AdmissionControl.builder().maxOpen(1).maxWait(Duration.ZERO).build();
+        rm.limitOpenResources(admission).addListener(new ResourceListener() {
+            @Override
+            public void onCreate(Object discriminator, Propagation propagation, long createNanos) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+
+        assertEquals("x", rm.withResource(r -> "x"));
+        assertEquals("y", rm.withResource(r -> "y"));
+
+        assertEquals(1, admission.availablePermits());
+        assertEquals(2, metrics.get(JBoomerang.COMMON_DISCRIMINATOR).getCloses());
+    }
+
+    @Test
+    public void histogramPercentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500, histogram.getMean(), 0.001);
+
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue("p50 was " + p50, p50 >= 500_000 && p50 <= 500_000 * 1.125);
+        assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void histogramBucketsCoverTheirValues() {
+        for (long v : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123_456_789, 1L << 40}) {
+            int bucket = LatencyHistogram.bucketOf(v);
+            assertTrue(v + " in bucket " + bucket, LatencyHistogram.highestValueOf(bucket) >= v);
+            assertTrue(v + " in bucket " + bucket, bucket == 0 || LatencyHistogram.highestValueOf(bucket - 1) < v);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Args;
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RoutingResourceFactoryTest {
+
+    private final List<String> log = new ArrayList<>();
+
+    private final BackendFactory primary  = new BackendFactory("primary");
+    private final BackendFactory replica1 = new BackendFactory("replica1");
+    private final BackendFactory replica2 = new BackendFactory("replica2");
+
+    private RoutingResourceFactory.Builder<Conn> router() {
+        return RoutingResourceFactory.<Conn>builder()
+                                     .backend("primary", primary)
+                                     .backend("replica1", replica1)
+                                     .backend("replica2", replica2);
+    }
+
+    @Test
+    public void leastOpenBackendIsPicked() {
+        RoutingResourceFactory<Conn> router = router().route("read", "replica1", "replica2").build();
+        JBoomerang<Conn> rm = new JBoomerang<>(router);
+
+        List<String> backends = rm.withResource("read", Propagation.JOIN, Args.none(), outer ->
+                rm.withResource("read", Propagation.WITH_NEW, Args.none(), inner -> {
+                    assertEquals(1, router.countOpen("replica1"));
+                    assertEquals(1, router.countOpen("replica2"));
+                    return Arrays.asList(outer.backend, inner.backend);
+                }));
+
+        assertTrue(backends.contains("replica1"));
+        assertTrue(backends.contains("replica2"));
+        assertEquals(0, router.countOpen("replica1"));
+        assertEquals(0, router.countOpen("replica2"));
+        assertEquals(0, primary.created);
+    }
+
+    @Test
+    public void joinSticksToTheBackendOfTheOuterScope() {
+        RoutingResourceFactory<Conn> router = router().route("read", "replica1", "replica2").build();
+        JBoomerang<Conn> rm = new JBoomerang<>(router);
+
+        rm.consume("read", Propagation.JOIN, outer -> {
+            assertEquals(outer.backend, router.backendOf(outer));
+            for (int i = 0; i < 5; i++) {
+                rm.consume("read", Propagation.JOIN, inner -> assertSame(outer, inner));
+            }
+        });
+        assertEquals(1, replica1.created + replica2.created);
+    }
+
+    @Test
+    public void routeByArgsSendsWritesToThePrimary() {
+        RoutingResourceFactory<Conn> router = router()
+                .routeBy((d, args) -> "write".equals(args.get(0)) ? Collections.singletonList("primary") : null)
+                .route("db", "replica1", "replica2")
+                .build();
+        JBoomerang<Conn> rm = new JBoomerang<>(router);
+
+        assertEquals("primary", rm.withResource("db", Propagation.JOIN, Args.of("write"), c -> c.backend));
+        assertNotEquals("primary", rm.withResource("db", Propagation.JOIN, Args.of("read"), c -> c.backend));
+    }
+
+    @Test
+    public void callsGoToTheBackendThatCreatedTheResource() {
+        RoutingResourceFactory<Conn> router = router().route("db", "replica2").build();
+        JBoomerang<Conn> rm = new JBoomerang<>(router);
+
+        try {
+            rm.consume("db", Propagation.JOIN, c -> {
+                throw new IllegalStateException("work failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("work failed", x.getMessage());
+        }
+
+        assertEquals("[replica2:create, replica2:onException, replica2:close]", log.toString());
+        assertNull(router.backendOf(new Conn("replica2")));
+    }
+
+    @Test
+    public void failedCreateDoesNotCountAsOpen() {
+        replica1.failing = true;
+        RoutingResourceFactory<Conn> router = router().route("db", "replica1").build();
+        JBoomerang<Conn> rm = new JBoomerang<>(router);
+
+        try {
+            rm.consume("db", Propagation.JOIN, c -> fail());
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("replica1 down", x.getMessage());
+        }
+        assertEquals(0, router.countOpen("replica1"));
+    }
+
+    @Test
+    public void latencyWeightedSelectionAvoidsTheSlowBackend() {
+        replica1.delayMillis = 20;
+        RoutingResourceFactory<Conn> router = router().route("read", "replica1", "replica2")
+                                                      .selection(RoutingResourceFactory.Selection.LATENCY_WEIGHTED)
+                                                      .build();
+        JBoomerang<Conn> rm = new JBoomerang<>(router);
+
+        //one create each to learn the latencies
+        rm.consume("read", Propagation.JOIN, c -> {
+        });
+        rm.consume("read", Propagation.JOIN, c -> {
+        });
+        replica1.created = 0;
+        replica2.created = 0;
+        for (int i = 0; i < 10; i++) {
+            rm.consume("read", Propagation.JOIN, c -> {
+            });
+        }
+
+        assertEquals(0, replica1.created);
+        assertEquals(10, replica2.created);
+    }
+
+    @Test
+    public void routeToAnUnknownBackendIsRejected() {
+        try {
+            router().route("db", "replica3").build();
+            fail();
+        } catch (IllegalArgumentException x) {
+            assertTrue(x.getMessage().contains("replica3"));
+        }
+    }
+
+    static class Conn {
+        final String backend;
+
+        Conn(String backend) {
+            this.backend = backend;
+        }
+    }
+
+    class BackendFactory implements JBoomerang.ResourceFactory<Conn> {
+        private final String name;
+        int     created;
+        boolean failing;
+        long    delayMillis;
+
+        BackendFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Conn create(Object discriminator, Args args) {
+            if (failing) {
+                throw new IllegalStateException(name + " down");
+            }
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            created++;
+            log.add(name + ":create");
+            return new Conn(name);
+        }
+
+        @Override
+        public void close(Object discriminator, Conn resource) {
+            log.add(name + ":close");
+        }
+
+        @Override
+        public void onException(Object discriminator, Conn resource) {
+            log.add(name + ":onException");
+        }
+    }
+}
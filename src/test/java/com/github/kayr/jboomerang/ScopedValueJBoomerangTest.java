@@ -0,0 +1,154 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import com.github.kayr.jboomerang.JBoomerang.ScopeCarrier;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs all the {@link JBoomerangTest} scenarios against the ScopedValue carrier. Skipped on JVMs without ScopedValue.
+ */
+public class ScopedValueJBoomerangTest extends JBoomerangTest {
+
+    @Override
+    protected JBoomerang<MyResource> newBoomerang(MyFactory factory) {
+        return new JBoomerang<>(factory, ScopeCarrier.SCOPED_VALUE);
+    }
+
+    @Before
+    @Override
+    public void setUp() {
+        Assume.assumeTrue("ScopedValue not available", JBoomerang.isScopedValueSupported());
+        super.setUp();
+    }
+
+    @Test
+    @Override
+    public void testCurrentDiscriminatorReturnsCurrentResource() {
+        //only the discriminators of the enclosing scopes are visible
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, r3 -> {
+            assertEquals(1, rm.countDiscriminators());
+            rm.consume("newDiscriminator", Propagation.JOIN, r11 -> {
+                assertEquals(1, rm.countOpenResources());
+                assertEquals(2, rm.countDiscriminators());
+                assertEquals("newDiscriminator", rm.currentDiscriminatorNotNull());
+            });
+            assertEquals(2, rm.countOpenResources());
+            assertEquals(1, rm.countDiscriminators());
+        }));
+
+        assertEquals(0, rm.countDiscriminators());
+    }
+
+    @Test
+    @Override
+    public void retainedThreadStateIsReusedAcrossOutermostScopes() {
+        rm.retainThreadState(true);
+        rm.consume(r1 -> rm.consume(Propagation.WITH_NEW, MyResource::work));
+        assertNull(rm.getScopeStore().current());
+        assertWorkExceptionsCloses(1, 0, 2, 2);
+    }
+
+    @Test
+    @Override
+    public void threadStateIsRemovedByDefault() {
+        assertNull(rm.getScopeStore().current());
+        rm.consume(r -> assertNotNull(rm.getScopeStore().current()));
+        assertNull(rm.getScopeStore().current());
+    }
+
+    @Test
+    public void forkedTasksJoinTheParentResource() throws Exception {
+        rm.consume(parent -> {
+            Object[] joined = inStructuredScope(() -> rm.withResource(r -> {
+                assertEquals(1, rm.countOpenResources());
+                r.work();
+                return r;
+            }), () -> rm.withResource(r -> r));
+
+            assertSame(parent, joined[0]);
+            assertSame(parent, joined[1]);
+        });
+
+        assertWorkExceptionsCloses(1, 0, 1, 1);
+    }
+
+    @Test
+    public void forkedTaskCanOpenItsOwnResource() throws Exception {
+        rm.consume(parent -> {
+            Object[] created = inStructuredScope(() -> rm.withResource(Propagation.WITH_NEW, r -> {
+                assertEquals(2, rm.countOpenResources());
+                return r;
+            }));
+
+            assertNotSame(parent, created[0]);
+            assertEquals(1, rm.countOpenResources());
+        });
+
+        assertWorkExceptionsCloses(0, 0, 2, 2);
+    }
+
+    @Test
+    public void failureInForkedTaskDoesNotCloseTheParentResource() throws Exception {
+        rm.consume(parent -> {
+            try {
+                inStructuredScope(() -> rm.withResource(r -> {
+                    throw new IllegalStateException("child failed");
+                }));
+                fail("expected child failure");
+            } catch (IllegalStateException x) {
+                assertEquals("child failed", x.getMessage());
+            }
+            assertSame(parent, rm.getCurrentResource().orElse(null));
+        });
+
+        assertWorkExceptionsCloses(0, 0, 1, 1);
+    }
+
+    @Test
+    public void wrappedExecutorTasksJoinTheSubmittersResource() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ExecutorService wrapped = rm.wrapExecutorService(executor);
+            rm.consume(parent -> assertSame(parent, wrapped.submit(() -> rm.withResource(r -> r)).get()));
+            assertWorkExceptionsCloses(0, 0, 1, 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Forks the tasks in a StructuredTaskScope, looked up reflectively as the tests are compiled for Java 8.
+     */
+    private static Object[] inStructuredScope(Callable<?>... tasks) throws Exception {
+        Class<?> scopeClass = Class.forName("java.util.concurrent.StructuredTaskScope");
+        AutoCloseable scope = (AutoCloseable) scopeClass.getConstructor().newInstance();
+        try {
+            Supplier<?>[] subtasks = new Supplier<?>[tasks.length];
+            for (int i = 0; i < tasks.length; i++) {
+                subtasks[i] = (Supplier<?>) scopeClass.getMethod("fork", Callable.class).invoke(scope, tasks[i]);
+            }
+            scopeClass.getMethod("join").invoke(scope);
+            Object[] results = new Object[tasks.length];
+            for (int i = 0; i < tasks.length; i++) {
+                Object state = subtasks[i].getClass().getInterfaces()[0].getMethod("state").invoke(subtasks[i]);
+                if ("FAILED".equals(state.toString())) {
+                    Throwable x = (Throwable) subtasks[i].getClass().getInterfaces()[0].getMethod("exception").invoke(subtasks[i]);
+                    ExceptionUtil.sneakyThrow(x);
+                }
+                results[i] = subtasks[i].get();
+            }
+            return results;
+        } finally {
+            scope.close();
+        }
+    }
+}
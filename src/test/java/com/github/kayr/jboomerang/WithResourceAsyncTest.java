@@ -0,0 +1,121 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WithResourceAsyncTest {
+
+    private final CountingFactory<Object> factory = CountingFactory.ofObjects();
+
+    private JBoomerang<Object> rm;
+
+    @Before
+    public void setUp() {
+        rm = new JBoomerang<>(factory);
+    }
+
+    @Test
+    public void resourceIsClosedWhenTheStageCompletes() throws Exception {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletionStage<String> result = rm.withResourceAsync(r -> pending);
+
+        assertEquals(0, rm.countOpenResources());
+        factory.assertOpensClosesExceptions(1, 0, 0);
+
+        pending.complete("done");
+        assertEquals("done", result.toCompletableFuture().get());
+        factory.assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void failedStageCallsOnException() {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletionStage<String> result = rm.withResourceAsync(r -> pending);
+        pending.completeExceptionally(new IllegalStateException("async failure"));
+
+        try {
+            result.toCompletableFuture().get();
+            fail();
+        } catch (Exception x) {
+            assertTrue(x instanceof ExecutionException);
+            assertEquals("async failure", x.getCause().getMessage());
+        }
+        factory.assertOpensClosesExceptions(1, 1, 1);
+    }
+
+    @Test
+    public void synchronousFailureClosesTheResource() {
+        try {
+            rm.withResourceAsync(r -> {
+                throw new IllegalStateException("sync failure");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("sync failure", x.getMessage());
+        }
+        factory.assertOpensClosesExceptions(1, 1, 1);
+    }
+
+    @Test
+    public void joinedResourceOutlivesTheOuterScopeUntilTheStageCompletes() throws Exception {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        CompletionStage<?>[] inner = new CompletionStage<?>[1];
+
+        rm.consume(outer -> inner[0] = rm.withResourceAsync(JBoomerang.COMMON_DISCRIMINATOR, Propagation.JOIN, JBoomerang.Args.none(), r -> {
+            assertSame(outer, r);
+            return pending;
+        }));
+
+        factory.assertOpensClosesExceptions(1, 0, 0);
+
+        //the joined stage fails but it did not open the resource, hence no onException
+        pending.completeExceptionally(new IllegalStateException());
+        assertTrue(inner[0].toCompletableFuture().isCompletedExceptionally());
+        factory.assertOpensClosesExceptions(1, 1, 0);
+    }
+
+    @Test
+    public void closeFailureFailsTheResult() {
+        factory.failClose = true;
+
+        CompletionStage<String> result = rm.withResourceAsync(r -> CompletableFuture.completedFuture("done"));
+
+        try {
+            result.toCompletableFuture().get();
+            fail();
+        } catch (Exception x) {
+            assertTrue(x.getCause() instanceof BoomerangCloseException);
+        }
+    }
+
+    @Test
+    public void errorOnCloseFailsTheResult() {
+        factory.closeError = new AssertionError("close failed");
+
+        CompletionStage<String> result = rm.withResourceAsync(r -> CompletableFuture.completedFuture("done"));
+
+        try {
+            result.toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (Exception x) {
+            assertSame(factory.closeError, x.getCause());
+        }
+    }
+
+    @Test
+    public void nonePropagationReturnsTheStageAsIs() throws Exception {
+        CompletableFuture<String> done = CompletableFuture.completedFuture("none");
+        assertSame(done, rm.withResourceAsync(JBoomerang.COMMON_DISCRIMINATOR, Propagation.NONE, JBoomerang.Args.none(), r -> done));
+        factory.assertOpensClosesExceptions(0, 0, 0);
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.kayr.jboomerang;
+
+import com.github.kayr.jboomerang.JBoomerang.Propagation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class WithResourceParallelTest {
+
+    private final List<String>  events     = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger opens      = new AtomicInteger();
+    private final AtomicInteger exceptions = new AtomicInteger();
+
+    private ExecutorService   executor;
+    private JBoomerang<Named> rm;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        rm = new JBoomerang<>(new NamedFactory());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static List<Integer> numbers(int count) {
+        return IntStream.range(0, count).boxed().collect(Collectors.toList());
+    }
+
+    private ParallelOptions.Builder options() {
+        return ParallelOptions.builder().executor(executor).parallelism(3).chunkSize(10);
+    }
+
+    @Test
+    public void sharedResourceIsUsedByAllChunks() {
+        Set<Named> used = ConcurrentHashMap.newKeySet();
+
+        List<Integer> sums = rm.withResourceParallel(numbers(95), options().build(), (r, chunk) -> {
+            used.add(r);
+            assertSame(r, rm.getCurrentResource().get());
+            return chunk.stream().mapToInt(Integer::intValue).sum();
+        });
+
+        assertEquals(10, sums.size());
+        assertEquals(45, (int) sums.get(0));
+        assertEquals(90 + 91 + 92 + 93 + 94, (int) sums.get(9));
+        assertEquals(1, used.size());
+        assertEquals("[open r1, close r1]", events.toString());
+    }
+
+    @Test
+    public void sharedModeJoinsTheCallersResource() {
+        rm.consume(outer -> {
+            rm.withResourceParallel(numbers(30), options().build(), (r, chunk) -> {
+                assertSame(outer, r);
+                return null;
+            });
+            assertEquals("[open r1]", events.toString());
+        });
+        assertEquals("[open r1, close r1]", events.toString());
+    }
+
+    @Test
+    public void eachWorkerGetsItsOwnResourceClosedInReverseOrder() {
+        Set<Named> used = ConcurrentHashMap.newKeySet();
+
+        int total = rm.withResourceParallel(numbers(100), options().propagation(Propagation.WITH_NEW).build(), (r, chunk) -> {
+            used.add(r);
+            return chunk.size();
+        }, Integer::sum).get();
+
+        assertEquals(100, total);
+        assertTrue(used.size() <= 3);
+        assertEquals("[open r1, open r2, open r3, close r3, close r2, close r1]", events.toString());
+    }
+
+    @Test
+    public void everyFailureIsReported() {
+        try {
+            rm.withResourceParallel(numbers(40), options().parallelism(4).chunkSize(10).build(), (r, chunk) -> {
+                throw new IllegalStateException("chunk " + chunk.get(0) + " failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("chunk 0 failed", x.getMessage());
+            for (Throwable suppressed : x.getSuppressed()) {
+                assertTrue(suppressed.getMessage().matches("chunk \\d+ failed"));
+            }
+        }
+        assertEquals(1, exceptions.get());
+        assertEquals("[open r1, close r1]", events.toString());
+    }
+
+    @Test
+    public void failedRunStopsHandingOutChunks() {
+        AtomicInteger started = new AtomicInteger();
+        try {
+            rm.withResourceParallel(numbers(1000), options().parallelism(1).chunkSize(1).propagation(Propagation.WITH_NEW).build(), (r, chunk) -> {
+                started.incrementAndGet();
+                throw new IllegalStateException("failed");
+            });
+            fail();
+        } catch (IllegalStateException x) {
+            assertEquals("failed", x.getMessage());
+        }
+        assertEquals(1, started.get());
+        assertEquals(1, exceptions.get());
+        assertEquals("[open r1, close r1]", events.toString());
+    }
+
+    @Test
+    public void rejectedWorkersAreReportedAndTheirResourcesClosed() {
+        executor.shutdown();
+        try {
+            rm.withResourceParallel(numbers(10), options().propagation(Propagation.WITH_NEW).chunkSize(5).build(), (r, chunk) -> chunk);
+            fail();
+        } catch (java.util.concurrent.RejectedExecutionException x) {
+            assertEquals(1, x.getSuppressed().length);
+        }
+        assertEquals("[open r1, open r2, close r2, close r1]", events.toString());
+    }
+
+    @Test
+    public void callerInsideTheWorkerPoolDoesNotStarveTheWorkers() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            ParallelOptions options = ParallelOptions.builder().executor(pool).parallelism(2).chunkSize(10).build();
+            List<List<Integer>> chunks = pool.submit(() -> rm.withResourceParallel(numbers(20), options, (r, chunk) -> chunk))
+                                             .get(5, TimeUnit.SECONDS);
+            assertEquals(2, chunks.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void emptyInputOpensNothing() {
+        assertTrue(rm.withResourceParallel(Collections.emptyList(), options().build(), (r, chunk) -> chunk).isEmpty());
+        assertEquals(0, opens.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyJoinAndWithNewAreSupported() {
+        ParallelOptions.builder().propagation(Propagation.REQUIRED).build();
+    }
+
+    static class Named {
+        private final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+    }
+
+    class NamedFactory implements JBoomerang.ResourceFactory<Named> {
+
+        @Override
+        public Named create(Object discriminator, JBoomerang.Args args) {
+            Named named = new Named("r" + opens.incrementAndGet());
+            events.add("open " + named.name);
+            return named;
+        }
+
+        @Override
+        public void close(Object discriminator, Named resource) {
+            events.add("close " + resource.name);
+        }
+
+        @Override
+        public void onException(Object discriminator, Named resource) {
+            exceptions.incrementAndGet();
+        }
+    }
+}